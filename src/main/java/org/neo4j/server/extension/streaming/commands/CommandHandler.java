@@ -1,11 +1,15 @@
 package org.neo4j.server.extension.streaming.commands;
 
-import org.neo4j.cypher.javacompat.ExecutionEngine;
 import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.index.*;
 import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.server.extension.streaming.cypher.AdmissionController;
+import org.neo4j.server.extension.streaming.cypher.CursorRegistry;
+import org.neo4j.server.extension.streaming.cypher.CypherService;
+import org.neo4j.server.extension.streaming.cypher.PrimitiveLongList;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriter;
+import org.neo4j.server.extension.streaming.cypher.json.Projection;
 import org.neo4j.tooling.GlobalGraphOperations;
 
 import java.io.IOException;
@@ -18,30 +22,68 @@ import java.util.*;
 @SuppressWarnings("unchecked")
 public class CommandHandler {
 
+    private static final Set<String> READ_COMMANDS = new HashSet<String>(Arrays.asList("GET_NODES", "GET_RELS", "FETCH", "CLOSE_CURSOR"));
+
     private final GraphDatabaseService gds;
     private final ReadableRelationshipIndex relAutoIndex;
     private final ReadableIndex<Node> nodeAutoIndex;
     private final IndexManager indexManager;
-    private final ExecutionEngine executionEngine;
+    private final CypherService cypherService;
+    // the instance is shared by all websocket connections, the deadline belongs to the message handled by the current thread
+    private final ThreadLocal<Long> deadline = new ThreadLocal<Long>();
 
     public CommandHandler(GraphDatabaseService gds) {
+        this(gds, new CypherService(gds));
+    }
+
+    public CommandHandler(GraphDatabaseService gds, CypherService cypherService) {
         this.gds = gds;
         indexManager = gds.index();
         relAutoIndex = indexManager.getRelationshipAutoIndexer().getAutoIndex();
         nodeAutoIndex = indexManager.getNodeAutoIndexer().getAutoIndex();
-        executionEngine = new ExecutionEngine(gds);
+        this.cypherService = cypherService;
     }
 
     public void handle(Collection<List> commands, final JsonResultWriter writer) {
+        handle(commands, writer, 0);
+    }
+
+    /**
+     * @param timeoutMillis deadline for all commands, the current command is cancelled and the transaction rolled back
+     *                      when it is exceeded, 0 for no limit
+     */
+    public void handle(Collection<List> commands, final JsonResultWriter writer, long timeoutMillis) {
+        handle(commands, writer, timeoutMillis, false);
+    }
+
+    /**
+     * @param parallel execute the commands concurrently if they are all read-only CYPHER queries that neither use nor
+     *                 change the context, the results are still written in order
+     */
+    public void handle(Collection<List> commands, final JsonResultWriter writer, long timeoutMillis, boolean parallel) {
+        if (parallel && isIndependentRead(commands)) {
+            handleParallel(commands, writer, timeoutMillis);
+            return;
+        }
+        deadline.set(timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0);
         Transaction tx = gds.beginTx();
         try {
             writer.startArray();
             try {
                 Map<String, Object> context = new HashMap<String, Object>();
+                boolean timedOut = false;
                 for (List command : commands) {
+                    if (remainingMillis() < 0) { // report it in place of the command, the transaction is rolled back
+                        writer.startArray();
+                        writer.writeError(cypherService.countTimeout(timeoutMillis), System.currentTimeMillis());
+                        writer.endArray();
+                        timedOut = true;
+                        break;
+                    }
                     handleSingleCommand(command, context, writer);
                 }
-                tx.success();
+                if (timedOut) tx.failure();
+                else tx.success();
             } catch (Exception e) {
                 // write error
                 e.printStackTrace();
@@ -53,9 +95,73 @@ public class CommandHandler {
             }
         } catch (IOException ioe) {
             ioe.printStackTrace(); // todo close writer??
+        } finally {
+            deadline.remove();
+        }
+    }
+
+    /**
+     * queries that fail before their output are written as error entries, failures while streaming a result are
+     * thrown, so the caller reports them instead of sending a truncated array
+     */
+    private void handleParallel(Collection<List> commands, JsonResultWriter writer, long timeoutMillis) {
+        final List<Map<String, Object>> queries = new ArrayList<Map<String, Object>>(commands.size());
+        for (List command : commands) {
+            queries.add((Map<String, Object>) command.get(command.size() - 1));
+        }
+        try {
+            writer.startArray();
+            cypherService.writeParallel(queries, writer, true, timeoutMillis);
+            writer.endArray();
+            writer.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
         }
     }
 
+    private boolean isIndependentRead(Collection<List> commands) {
+        for (List command : commands) {
+            if (!command.get(0).toString().equalsIgnoreCase("CYPHER")) return false;
+            final Object data = command.get(command.size() - 1);
+            if (!(data instanceof Map) || bool((Map) data, "useContext") || bool((Map) data, "mergeResult")) return false;
+            if (AdmissionController.isWrite(String.valueOf(((Map) data).get("query")))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the time left for the commands handled by the current thread, Long.MAX_VALUE without deadline
+     */
+    private long remainingMillis() {
+        final Long deadline = this.deadline.get();
+        if (deadline == null || deadline == 0) return Long.MAX_VALUE;
+        return deadline - System.currentTimeMillis();
+    }
+
+    /**
+     * commands other than GET_NODES, GET_RELS, cursor commands and read-only CYPHER queries are writes, fetching a
+     * page of a cursor that was opened for a write query too
+     */
+    public boolean isWrite(Collection<List> commands) {
+        for (List command : commands) {
+            final String opCode = command.get(0).toString().toUpperCase();
+            if (opCode.equals("FETCH") && isWriteCursor(command.get(command.size() - 1))) return true;
+            if (READ_COMMANDS.contains(opCode)) continue;
+            if (opCode.equals("CYPHER") || opCode.equals("CURSOR")) {
+                final Object data = command.get(command.size() - 1);
+                if (data instanceof Map && !AdmissionController.isWrite(String.valueOf(((Map) data).get("query")))) continue;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isWriteCursor(Object data) {
+        if (!(data instanceof Map) || !(((Map) data).get("cursor") instanceof Number)) return false;
+        final CursorRegistry.Cursor cursor = cypherService.getCursors().get(((Number) ((Map) data).get("cursor")).longValue());
+        return cursor != null && cursor.isWrite();
+    }
+
     interface Command {
         void execute(Iterable<?> selection, Object data, Map context, JsonResultWriter output) throws IOException;
     }
@@ -277,7 +383,9 @@ public class CommandHandler {
          * executes cypher query and renders results
          *
          * @param input { query : "query" , [params : { params}], useContext: true} useContext -> merges current context with params,
-         *              mergeResult : merges cypher result with context
+         *              mergeResult : merges cypher result with context,
+         *              projection : { node : ["prop"] | "ids", relationship : ["prop"] | "ids" } renders only those properties,
+         *              timeout : milliseconds for executing and rendering the query (within the deadline of the message)
          */
         public void execute(Iterable<?> selection, Object input, Map context, JsonResultWriter output) throws IOException {
             Map data = (Map) input;
@@ -286,9 +394,13 @@ public class CommandHandler {
                 params = new HashMap(params);
                 params.putAll(context);
             }
-            final long start = System.currentTimeMillis();
-            final ExecutionResult result = executionEngine.execute(data.get("query").toString(), params);
-            output.writeResult(result, start);
+            final ExecutionResult result;
+            output.useProjection(Projection.from(data.get("projection")));
+            try {
+                result = cypherService.writeResult(data.get("query").toString(), params, output, timeout(data));
+            } finally {
+                output.useProjection(Projection.ALL);
+            }
             // todo put result into context ? (avoid double execution, keep last row in wrapping result
             if (bool(data, "mergeResult")) {
                 for (Map<String, Object> row : result) {
@@ -298,6 +410,58 @@ public class CommandHandler {
         }
     }
 
+    class OpenCursor implements Command {
+        /**
+         * executes cypher query, keeps the result open as cursor and renders the first page
+         *
+         * @param input { query : "query" , [params : { params}], limit : rows per page, projection : see CYPHER }
+         */
+        public void execute(Iterable<?> selection, Object input, Map context, JsonResultWriter output) throws IOException {
+            Map data = (Map) input;
+            final CursorRegistry.Cursor cursor = cypherService.openCursor(data.get("query").toString(), map(data, "params"), Projection.from(data.get("projection")));
+            fetch(cursor, limit(data), output);
+        }
+    }
+
+    class FetchCursor implements Command {
+        /**
+         * renders the next page of an open cursor
+         *
+         * @param input { cursor : id, limit : rows per page }
+         */
+        public void execute(Iterable<?> selection, Object input, Map context, JsonResultWriter output) throws IOException {
+            Map data = (Map) input;
+            final long id = ((Number) data.get("cursor")).longValue();
+            final CursorRegistry.Cursor cursor = cypherService.getCursors().get(id);
+            if (cursor == null) throw new IllegalArgumentException("Unknown or expired cursor " + id);
+            fetch(cursor, limit(data), output);
+        }
+    }
+
+    class CloseCursor implements Command {
+        /**
+         * closes an open cursor
+         *
+         * @param input { cursor : id }
+         */
+        public void execute(Iterable<?> selection, Object input, Map context, JsonResultWriter output) throws IOException {
+            cypherService.getCursors().close(((Number) ((Map) input).get("cursor")).longValue());
+        }
+    }
+
+    private void fetch(CursorRegistry.Cursor cursor, int limit, JsonResultWriter output) throws IOException {
+        try {
+            cypherService.fetch(cursor, limit, output);
+        } finally {
+            output.useProjection(Projection.ALL);
+        }
+    }
+
+    private int limit(Map data) {
+        final Number limit = (Number) data.get("limit");
+        return limit == null ? CursorRegistry.DEFAULT_PAGE_SIZE : limit.intValue();
+    }
+
     class GetRelationships implements Command {
         /**
          * returns relationships from selection
@@ -311,6 +475,13 @@ public class CommandHandler {
         }
     }
 
+    private long timeout(Map data) {
+        long timeout = remainingMillis();
+        final Number commandTimeout = (Number) data.get("timeout");
+        if (commandTimeout != null && commandTimeout.longValue() > 0) timeout = Math.min(timeout, commandTimeout.longValue());
+        return timeout == Long.MAX_VALUE ? 0 : Math.max(timeout, 1);
+    }
+
     private boolean bool(Map data, String key) {
         final Boolean value = (Boolean) data.get(key);
         return value != null && value;
@@ -334,7 +505,10 @@ public class CommandHandler {
             "GET_RELS", new GetRelationships(),
             "DELETE_NODES", new DeleteNodes(),
             "DELETE_RELS", new DeleteRelationships(),
-            "CYPHER", new CypherQuery()
+            "CYPHER", new CypherQuery(),
+            "CURSOR", new OpenCursor(),
+            "FETCH", new FetchCursor(),
+            "CLOSE_CURSOR", new CloseCursor()
     );
 
     // [opcode, selector, [{data}]]
@@ -352,11 +526,50 @@ public class CommandHandler {
         writer.endArray();
     }
 
+    /**
+     * looks up the entities of an id array (decoded from large id lists) lazily while iterating
+     */
+    private abstract static class ById<T> implements Iterable<T> {
+        private final PrimitiveLongList ids;
+
+        ById(PrimitiveLongList ids) {
+            this.ids = ids;
+        }
+
+        abstract T lookup(long id);
+
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int index;
+
+                public boolean hasNext() {
+                    return index < ids.size();
+                }
+
+                public T next() {
+                    if (index == ids.size()) throw new NoSuchElementException();
+                    return lookup(ids.getLong(index++));
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
     // selector: id, "ref" [id1,id2] ["ref2","ref2"] "*", { index : "index" , key, "key", value: value | query : query}
     private Iterable<Node> selectNodes(Object selector, Map<String, Object> context) {
         if (selector instanceof Number) {
             return Collections.singleton(gds.getNodeById(((Number) selector).longValue()));
         }
+        if (selector instanceof PrimitiveLongList) { // before List, the view is read-only
+            return new ById<Node>((PrimitiveLongList) selector) {
+                Node lookup(long id) {
+                    return gds.getNodeById(id);
+                }
+            };
+        }
         if (selector instanceof String) {
             if (selector.toString().equals("*")) return GlobalGraphOperations.at(gds).getAllNodes();
             return Collections.singleton((Node) context.get(selector.toString()));
@@ -389,6 +602,13 @@ public class CommandHandler {
         if (selector instanceof Number) {
             return Collections.singleton(gds.getRelationshipById(((Number) selector).longValue()));
         }
+        if (selector instanceof PrimitiveLongList) { // before List, the view is read-only
+            return new ById<Relationship>((PrimitiveLongList) selector) {
+                Relationship lookup(long id) {
+                    return gds.getRelationshipById(id);
+                }
+            };
+        }
         if (selector instanceof String) {
             if (selector.toString().equals("*")) return GlobalGraphOperations.at(gds).getAllRelationships();
             return Collections.singleton((Relationship) context.get(selector.toString()));
@@ -0,0 +1,131 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Limits the number of concurrently executing read and write requests. Requests beyond the limit wait in a bounded
+ * queue for at most the queue timeout, when the queue is full or the timeout passes they are rejected with a
+ * {@link ServerBusyException} so that callers can answer "busy" right away instead of tying up container threads.
+ * Each successful {@link #acquire} must be followed by a {@link #release} with the same kind.
+ *
+ * @author mh
+ * @since 25.04.12
+ */
+public class AdmissionController {
+    public static final int DEFAULT_MAX_READS = 2 * Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_MAX_WRITES = 1;
+    public static final int DEFAULT_MAX_QUEUED = 100;
+    public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 1000;
+
+    private static final Pattern WRITE_CLAUSE = Pattern.compile("\\b(create|set|delete|relate)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final Semaphore reads;
+    private final Semaphore writes;
+    private final int maxReads;
+    private final int maxWrites;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+
+    public AdmissionController() {
+        this(DEFAULT_MAX_READS, DEFAULT_MAX_WRITES, DEFAULT_MAX_QUEUED, DEFAULT_QUEUE_TIMEOUT_MILLIS);
+    }
+
+    public AdmissionController(int maxReads, int maxWrites, int maxQueued, long queueTimeoutMillis) {
+        this.maxReads = maxReads;
+        this.maxWrites = maxWrites;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.reads = new Semaphore(maxReads, true);
+        this.writes = new Semaphore(maxWrites, true);
+    }
+
+    /**
+     * classifies a cypher query by its clauses, string literals containing the keywords are also taken as write
+     */
+    public static boolean isWrite(String query) {
+        return query != null && WRITE_CLAUSE.matcher(query).find();
+    }
+
+    /**
+     * @throws ServerBusyException if the request can't be admitted within the queue timeout or the queue is full
+     */
+    public void acquire(boolean write) {
+        final Semaphore permits = write ? writes : reads;
+        if (permits.tryAcquire()) {
+            admitted.incrementAndGet();
+            return;
+        }
+        final int depth = queued.incrementAndGet();
+        try {
+            if (depth > maxQueued) throw busy(write);
+            updateMax(maxQueueDepth, depth);
+            final long start = System.currentTimeMillis();
+            final boolean acquired;
+            try {
+                acquired = permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw busy(write);
+            }
+            final long waited = System.currentTimeMillis() - start;
+            totalWaitMillis.addAndGet(waited);
+            updateMax(maxWaitMillis, waited);
+            if (!acquired) throw busy(write);
+            admitted.incrementAndGet();
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    public void release(boolean write) {
+        (write ? writes : reads).release();
+    }
+
+    private ServerBusyException busy(boolean write) {
+        rejected.incrementAndGet();
+        return new ServerBusyException("Too many concurrent " + (write ? "writes" : "reads") + ", try again later");
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        while (true) {
+            final int current = max.get();
+            if (current >= value || max.compareAndSet(current, value)) return;
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        while (true) {
+            final long current = max.get();
+            if (current >= value || max.compareAndSet(current, value)) return;
+        }
+    }
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public Map<String, Object> stats() {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("runningReads", maxReads - reads.availablePermits());
+        stats.put("runningWrites", maxWrites - writes.availablePermits());
+        stats.put("queueDepth", getQueueDepth());
+        stats.put("maxQueueDepth", maxQueueDepth.get());
+        stats.put("admitted", admitted.get());
+        stats.put("rejected", rejected.get());
+        stats.put("totalWaitMillis", totalWaitMillis.get());
+        stats.put("maxWaitMillis", maxWaitMillis.get());
+        return stats;
+    }
+}
@@ -0,0 +1,207 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import org.neo4j.cypher.javacompat.ExecutionResult;
+import org.neo4j.server.extension.streaming.cypher.json.Projection;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the lazy row iterators of open query results under a cursor id, so that clients can fetch a result page by page
+ * without re-running the query. Cursors that were not accessed within the idle ttl are closed by a background sweeper.
+ * The cursors don't buffer rows, so the memory they hold is bounded by the number of open cursors.
+ *
+ * @author mh
+ * @since 23.04.12
+ */
+public class CursorRegistry {
+    public static final int DEFAULT_MAX_CURSORS = 100;
+    public static final long DEFAULT_IDLE_TTL_MILLIS = 60 * 1000;
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final Map<Long, Cursor> cursors = new ConcurrentHashMap<Long, Cursor>();
+    private final int maxCursors;
+    private final long idleTtlMillis;
+    // slots taken by open cursors, reserved before a cursor is registered so concurrent opens can't exceed maxCursors
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong rowsFetched = new AtomicLong();
+    // started with the first cursor, so registries that are never used don't hold a thread
+    private volatile ScheduledExecutorService sweeper;
+    private boolean shutdown;
+
+    public CursorRegistry(int maxCursors, long idleTtlMillis) {
+        this.maxCursors = maxCursors;
+        this.idleTtlMillis = idleTtlMillis;
+    }
+
+    private synchronized void startSweeper() {
+        if (sweeper != null || shutdown) return;
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "cypher-cursor-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final long period = Math.max(idleTtlMillis / 2, 100);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sweep(System.currentTimeMillis());
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        sweeper = executor;
+    }
+
+    public static class Cursor {
+        private final long id;
+        private final List<String> columns;
+        private final Iterator<Map<String, Object>> rows;
+        private final Projection projection;
+        private final boolean write;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        Cursor(long id, List<String> columns, Iterator<Map<String, Object>> rows, Projection projection, boolean write) {
+            this.id = id;
+            this.columns = columns;
+            this.rows = rows;
+            this.projection = projection;
+            this.write = write;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        /**
+         * not thread safe, callers synchronize on the cursor while fetching a page
+         */
+        public Iterator<Map<String, Object>> getRows() {
+            return rows;
+        }
+
+        /**
+         * the projection given when the cursor was opened, used for all pages
+         */
+        public Projection getProjection() {
+            return projection;
+        }
+
+        /**
+         * opened for a write query, fetching a page continues it, so pages are admitted as writes
+         */
+        public boolean isWrite() {
+            return write;
+        }
+
+        void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @throws TooManyCursorsException if the maximum number of open cursors is reached
+     */
+    public Cursor open(ExecutionResult result, Projection projection) {
+        return open(result, projection, false);
+    }
+
+    /**
+     * @param write the result belongs to a write query
+     * @throws TooManyCursorsException if the maximum number of open cursors is reached
+     */
+    public Cursor open(ExecutionResult result, Projection projection, boolean write) {
+        if (sweeper == null) startSweeper();
+        if (!reserve()) {
+            sweep(System.currentTimeMillis());
+            if (!reserve()) {
+                rejected.incrementAndGet();
+                throw new TooManyCursorsException("Too many open cursors, at most " + maxCursors + " are allowed");
+            }
+        }
+        final Cursor cursor;
+        try {
+            cursor = new Cursor(ids.incrementAndGet(), result.columns(), result.iterator(), projection, write);
+        } catch (RuntimeException re) {
+            reserved.decrementAndGet();
+            throw re;
+        }
+        cursors.put(cursor.getId(), cursor);
+        opened.incrementAndGet();
+        return cursor;
+    }
+
+    private boolean reserve() {
+        while (true) {
+            final int current = reserved.get();
+            if (current >= maxCursors) return false;
+            if (reserved.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * @return the cursor or null if it is unknown, exhausted or expired
+     */
+    public Cursor get(long id) {
+        final Cursor cursor = cursors.get(id);
+        if (cursor != null) cursor.touch();
+        return cursor;
+    }
+
+    public boolean close(long id) {
+        if (cursors.remove(id) == null) return false;
+        reserved.decrementAndGet();
+        return true;
+    }
+
+    void fetched(int rows) {
+        rowsFetched.addAndGet(rows);
+    }
+
+    void sweep(long now) {
+        for (Cursor cursor : cursors.values()) {
+            if (now - cursor.lastAccess > idleTtlMillis && cursors.remove(cursor.getId(), cursor)) { // not closed meanwhile
+                reserved.decrementAndGet();
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    public int size() {
+        return cursors.size();
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (sweeper != null) sweeper.shutdownNow();
+        cursors.clear();
+        reserved.set(0);
+    }
+
+    public Map<String, Object> stats() {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("open", size());
+        stats.put("maxCursors", maxCursors);
+        stats.put("opened", opened.get());
+        stats.put("expired", expired.get());
+        stats.put("rejected", rejected.get());
+        stats.put("rowsFetched", rowsFetched.get());
+        return stats;
+    }
+}
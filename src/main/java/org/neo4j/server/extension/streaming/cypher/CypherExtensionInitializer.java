@@ -0,0 +1,125 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import org.apache.commons.configuration.Configuration;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.server.NeoServer;
+import org.neo4j.server.extension.streaming.cypher.json.FlushPolicy;
+import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriters;
+import org.neo4j.server.plugins.Injectable;
+import org.neo4j.server.plugins.SPIPluginLifecycle;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Creates the execution engine, writer factory and object mapper once for the server lifetime and
+ * hands them to the (per-request) jax-rs resources via @Context injection.
+ *
+ * @author mh
+ * @since 18.04.12
+ */
+public class CypherExtensionInitializer implements SPIPluginLifecycle {
+    public static final String CONFIG_PREFIX = "org.neo4j.server.extension.streaming.cypher.";
+    public static final String QUERY_CACHE_SIZE = CONFIG_PREFIX + "query_cache_size";
+    // file with one query per line, parsed into the query cache at startup
+    public static final String WARMUP_QUERIES = CONFIG_PREFIX + "warmup_queries";
+    public static final String COMPRESSION_LEVEL = CONFIG_PREFIX + "compression_level";
+    // sync flushes of compressed responses, every n rows, bytes (uncompressed) or milliseconds
+    public static final String COMPRESSION_FLUSH_ROWS = CONFIG_PREFIX + "compression_flush_rows";
+    public static final String COMPRESSION_FLUSH_BYTES = CONFIG_PREFIX + "compression_flush_bytes";
+    public static final String COMPRESSION_FLUSH_MILLIS = CONFIG_PREFIX + "compression_flush_millis";
+    // flush at least every n milliseconds while rows are written to notice clients that went away, 0 disables it
+    public static final String PROBE_MILLIS = CONFIG_PREFIX + "probe_millis";
+    // open server side cursors, idle cursors are closed after the ttl
+    public static final String MAX_CURSORS = CONFIG_PREFIX + "max_cursors";
+    public static final String CURSOR_IDLE_TTL_MILLIS = CONFIG_PREFIX + "cursor_idle_ttl_millis";
+
+    // concurrently executing reads and writes, further requests wait up to the queue timeout in a bounded queue
+    public static final String MAX_CONCURRENT_READS = CONFIG_PREFIX + "max_concurrent_reads";
+    public static final String MAX_CONCURRENT_WRITES = CONFIG_PREFIX + "max_concurrent_writes";
+    public static final String MAX_QUEUED = CONFIG_PREFIX + "max_queued";
+    public static final String QUEUE_TIMEOUT_MILLIS = CONFIG_PREFIX + "queue_timeout_millis";
+
+    // threads for parallel batches, rows buffered per query until its result is written
+    public static final String PARALLELISM = CONFIG_PREFIX + "parallelism";
+    public static final String PARALLEL_BUFFER_ROWS = CONFIG_PREFIX + "parallel_buffer_rows";
+
+    private CypherService cypherService;
+
+    @Override
+    public Collection<Injectable<?>> start(GraphDatabaseService graphDatabaseService, Configuration config) {
+        return injectables(graphDatabaseService, config);
+    }
+
+    @Override
+    public Collection<Injectable<?>> start(NeoServer neoServer) {
+        return injectables(neoServer.getDatabase().graph, neoServer.getConfiguration());
+    }
+
+    @Override
+    public void stop() {
+        if (cypherService != null) cypherService.shutdown();
+    }
+
+    private Collection<Injectable<?>> injectables(GraphDatabaseService gdb, Configuration config) {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final CursorRegistry cursors = new CursorRegistry(config.getInt(MAX_CURSORS, CursorRegistry.DEFAULT_MAX_CURSORS),
+                config.getLong(CURSOR_IDLE_TTL_MILLIS, CursorRegistry.DEFAULT_IDLE_TTL_MILLIS));
+        cypherService = new CypherService(gdb, config.getInt(QUERY_CACHE_SIZE, CypherService.DEFAULT_QUERY_CACHE_SIZE), cursors,
+                config.getInt(PARALLELISM, ParallelQueryExecutor.DEFAULT_THREADS), config.getInt(PARALLEL_BUFFER_ROWS, ParallelQueryExecutor.DEFAULT_BUFFERED_ROWS));
+        warmUp(cypherService.getQueryCache(), config.getString(WARMUP_QUERIES));
+        final JsonResultWriters writers = new JsonResultWriters(objectMapper);
+        writers.setCompression(config.getInt(COMPRESSION_LEVEL, Deflater.BEST_SPEED), new FlushPolicy(
+                config.getInt(COMPRESSION_FLUSH_ROWS, 1000), config.getLong(COMPRESSION_FLUSH_BYTES, 64 * 1024), config.getLong(COMPRESSION_FLUSH_MILLIS, 1000)));
+        writers.setProbeMillis(config.getLong(PROBE_MILLIS, JsonResultWriters.DEFAULT_PROBE_MILLIS));
+        final AdmissionController admissionController = new AdmissionController(
+                config.getInt(MAX_CONCURRENT_READS, AdmissionController.DEFAULT_MAX_READS), config.getInt(MAX_CONCURRENT_WRITES, AdmissionController.DEFAULT_MAX_WRITES),
+                config.getInt(MAX_QUEUED, AdmissionController.DEFAULT_MAX_QUEUED), config.getLong(QUEUE_TIMEOUT_MILLIS, AdmissionController.DEFAULT_QUEUE_TIMEOUT_MILLIS));
+        return Arrays.<Injectable<?>>asList(
+                injectable(CypherService.class, cypherService),
+                injectable(AdmissionController.class, admissionController),
+                injectable(JsonResultWriters.class, writers),
+                injectable(ObjectMapper.class, objectMapper)
+        );
+    }
+
+    private void warmUp(CypherQueryCache queryCache, String file) {
+        if (file == null) return;
+        try {
+            final List<String> queries = new ArrayList<String>();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("//")) continue;
+                    queries.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+            queryCache.warmUp(queries);
+        } catch (Exception e) {
+            System.err.println("Error warming up query cache from " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static <T> Injectable<T> injectable(final Class<T> type, final T value) {
+        return new Injectable<T>() {
+            public T getValue() {
+                return value;
+            }
+
+            public Class<T> getType() {
+                return type;
+            }
+        };
+    }
+}
@@ -6,69 +6,283 @@ package org.neo4j.server.extension.streaming.cypher;
  */
 
 import org.codehaus.jackson.map.ObjectMapper;
-import org.neo4j.server.database.Database;
+import org.neo4j.server.extension.streaming.cypher.json.Compression;
+import org.neo4j.server.extension.streaming.cypher.json.FlushPolicy;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriter;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriters;
+import org.neo4j.server.extension.streaming.cypher.json.Projection;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
 import javax.ws.rs.core.Response.Status;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 @Path("/cypher")
 public class CypherHttpService {
+    // milliseconds for executing the query and streaming the result, alternatively "timeout" in the request body
+    public static final String TIMEOUT_HEADER = "X-Query-Timeout";
 
     private final CypherService service;
+    private final AdmissionController admissionController;
     private final JsonResultWriters writers;
+    private final ObjectMapper objectMapper;
+    private final RequestParser requestParser;
 
+    public CypherHttpService(@Context CypherService service, @Context AdmissionController admissionController,
+                             @Context JsonResultWriters writers, @Context ObjectMapper objectMapper) {
+        this.service = service;
+        this.admissionController = admissionController;
+        this.writers = writers;
+        this.objectMapper = objectMapper;
+        this.requestParser = new RequestParser(objectMapper.getJsonFactory());
+    }
 
-    public CypherHttpService(@Context Database database) {
-        service = new CypherService(database.graph);
-        writers = new JsonResultWriters();
+    @POST
+    @Produces({MediaType.APPLICATION_JSON, JsonResultWriters.SMILE, JsonResultWriters.NDJSON, JsonResultWriters.CSV, JsonResultWriters.TSV})
+    public Response query(final @HeaderParam("Accept") String accept, @HeaderParam("Accept-Encoding") String acceptEncoding,
+                          @HeaderParam(TIMEOUT_HEADER) final Long timeoutHeader, @Context final UriInfo uriInfo, final InputStream body) {
+        try {
+            final Map<String, Object> params = requestParser.parseMap(body);
+            final long timeout = timeout(params, timeoutHeader);
+            final String query = (String) params.get("query");
+            final boolean write = AdmissionController.isWrite(query);
+            final Projection projection = Projection.from(params.get("projection"));
+            admissionController.acquire(write);
+            return stream(accept, acceptEncoding, uriInfo, projection, new AdmittedOutput(write) {
+                void write(JsonResultWriter writer) throws IOException {
+                    service.execute(query, (Map<String, Object>) params.get("params"), writer, timeout);
+                }
+            });
+        } catch (ServerBusyException e) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+    }
+
+    /**
+     * executes a batch of queries, either [{query, params, projection}, ...] or {"queries" : [...], "transaction" : true, "timeout" : ms}
+     * and streams their results or errors in order as one array, with "parallel" : true read-only batches without
+     * transaction are executed concurrently
+     */
+    @POST
+    @Path("/batch")
+    @Produces({MediaType.APPLICATION_JSON, JsonResultWriters.SMILE, JsonResultWriters.NDJSON, JsonResultWriters.CSV, JsonResultWriters.TSV})
+    public Response batch(final @HeaderParam("Accept") String accept, @HeaderParam("Accept-Encoding") String acceptEncoding,
+                          @HeaderParam(TIMEOUT_HEADER) final Long timeoutHeader, @Context final UriInfo uriInfo, final InputStream body) {
+        try {
+            final Object input = requestParser.parse(body);
+            final Map<String, Object> options = input instanceof Map ? (Map<String, Object>) input : Collections.<String, Object>emptyMap();
+            final Object queries = input instanceof Map ? options.get("queries") : input;
+            if (!(queries instanceof List)) throw new IllegalArgumentException("Invalid input, expected a list of queries");
+            final boolean transaction = Boolean.TRUE.equals(options.get("transaction"));
+            final boolean parallel = Boolean.TRUE.equals(options.get("parallel"));
+            final long timeout = timeout(options, timeoutHeader);
+            final boolean write = isWrite((List<Map<String, Object>>) queries);
+            admissionController.acquire(write);
+            return stream(accept, acceptEncoding, uriInfo, Projection.ALL, new AdmittedOutput(write) {
+                void write(JsonResultWriter writer) throws IOException {
+                    service.executeBatch((List<Map<String, Object>>) queries, writer, transaction, timeout, parallel);
+                }
+            });
+        } catch (ServerBusyException e) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+    }
 
+    private boolean isWrite(List<Map<String, Object>> queries) {
+        for (Map<String, Object> query : queries) {
+            if (AdmissionController.isWrite((String) query.get("query"))) return true;
+        }
+        return false;
     }
 
+    /**
+     * executes the query, keeps the result open as cursor and returns the first page of "limit" rows,
+     * the page contains the cursor id and whether there are "more" rows, admitted like {@link #query}
+     */
     @POST
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response query(final @HeaderParam("Accept") String accept,  @Context final UriInfo uriInfo, final String body) {
+    @Path("/cursor")
+    @Produces({MediaType.APPLICATION_JSON, JsonResultWriters.SMILE, JsonResultWriters.NDJSON, JsonResultWriters.CSV, JsonResultWriters.TSV})
+    public Response openCursor(final @HeaderParam("Accept") String accept, @HeaderParam("Accept-Encoding") String acceptEncoding,
+                               @Context final UriInfo uriInfo, final InputStream body) {
+        boolean admitted = false;
+        boolean write = false;
         try {
-            final Map<String, Object> params = params(body);
-            StreamingOutput stream = new StreamingOutput() {
-                public void write(OutputStream output) throws IOException, WebApplicationException {
-                    try {
-                        JsonResultWriter writer = writerFor(accept, output, neoServerBaseUri(uriInfo));
-                        service.execute((String) params.get("query"), (Map<String, Object>) params.get("params"), writer);
-                        writer.close();
-                    } catch (Exception e) {
-                        throw new WebApplicationException(e);
-                    }
+            final Map<String, Object> params = requestParser.parseMap(body);
+            final String query = (String) params.get("query");
+            write = AdmissionController.isWrite(query);
+            admissionController.acquire(write);
+            admitted = true;
+            final CursorRegistry.Cursor cursor = service.openCursor(query, (Map<String, Object>) params.get("params"), Projection.from(params.get("projection")));
+            final Number limit = (Number) params.get("limit");
+            admitted = false; // released by the output of the first page
+            return fetch(accept, acceptEncoding, uriInfo, cursor, limit == null ? CursorRegistry.DEFAULT_PAGE_SIZE : limit.intValue(), write);
+        } catch (ServerBusyException e) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
+        } catch (TooManyCursorsException e) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        } finally {
+            if (admitted) admissionController.release(write);
+        }
+    }
+
+    @GET
+    @Path("/cursor/{id}")
+    @Produces({MediaType.APPLICATION_JSON, JsonResultWriters.SMILE, JsonResultWriters.NDJSON, JsonResultWriters.CSV, JsonResultWriters.TSV})
+    public Response fetch(final @HeaderParam("Accept") String accept, @HeaderParam("Accept-Encoding") String acceptEncoding,
+                          @Context final UriInfo uriInfo, @PathParam("id") long id,
+                          @QueryParam("limit") @DefaultValue("" + CursorRegistry.DEFAULT_PAGE_SIZE) int limit) {
+        final CursorRegistry.Cursor cursor = service.getCursors().get(id);
+        if (cursor == null) return Response.status(Status.NOT_FOUND).entity("Unknown or expired cursor " + id).build();
+        final boolean write = cursor.isWrite();
+        try {
+            admissionController.acquire(write); // fetching a page continues the lazy execution of the query
+        } catch (ServerBusyException e) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
+        }
+        return fetch(accept, acceptEncoding, uriInfo, cursor, limit, write);
+    }
+
+    @DELETE
+    @Path("/cursor/{id}")
+    public Response closeCursor(@PathParam("id") long id) {
+        if (service.getCursors().close(id)) return Response.noContent().build();
+        return Response.status(Status.NOT_FOUND).entity("Unknown or expired cursor " + id).build();
+    }
+
+    /**
+     * streams a page of the cursor with the admission permit acquired for it
+     */
+    private Response fetch(String accept, String acceptEncoding, UriInfo uriInfo, final CursorRegistry.Cursor cursor, final int limit, boolean write) {
+        try {
+            return stream(accept, acceptEncoding, uriInfo, cursor.getProjection(), new AdmittedOutput(write) {
+                void write(JsonResultWriter writer) throws IOException {
+                    service.fetch(cursor, limit, writer);
                 }
-            };
-            return Response.ok(stream).build();
+            });
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
         }
     }
 
+    private abstract static class ResultOutput {
+        abstract void write(JsonResultWriter writer) throws IOException;
+
+        /**
+         * called exactly once, after the output was written or when it can't be written
+         */
+        void done() {
+        }
+    }
+
+    /**
+     * releases the admission permit acquired for the request when the output is done
+     */
+    private abstract class AdmittedOutput extends ResultOutput {
+        private final boolean write;
+
+        AdmittedOutput(boolean write) {
+            this.write = write;
+        }
+
+        @Override
+        void done() {
+            admissionController.release(write);
+        }
+    }
+
+    private Response stream(final String accept, String acceptEncoding, final UriInfo uriInfo, final Projection projection, final ResultOutput result) {
+        final String encoding = Compression.select(acceptEncoding);
+        StreamingOutput stream = new StreamingOutput() {
+            public void write(OutputStream output) throws IOException, WebApplicationException {
+                try {
+                    JsonResultWriter writer = writerFor(accept, writers.compress(output, encoding), neoServerBaseUri(uriInfo));
+                    writer.useFlushPolicy(flushPolicy(accept, encoding));
+                    writer.useProjection(projection);
+                    result.write(writer);
+                    writer.close();
+                } catch (Exception e) {
+                    throw new WebApplicationException(e);
+                } finally {
+                    result.done();
+                }
+            }
+        };
+        try {
+            final Response.ResponseBuilder response = Response.ok(stream, contentType(accept));
+            if (encoding != null) response.header("Content-Encoding", encoding);
+            return response.build();
+        } catch (RuntimeException e) {
+            result.done();
+            throw e;
+        }
+    }
+
+    @GET
+    @Path("/stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response stats() throws IOException {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>(service.stats());
+        stats.put("admission", admissionController.stats());
+        stats.put("flush", writers.getFlushStatistics().stats());
+        return Response.ok(objectMapper.writeValueAsString(stats)).build();
+    }
+
+    private long timeout(Map<String, Object> params, Long timeoutHeader) {
+        final Number timeout = (Number) params.get("timeout");
+        if (timeout != null) return timeout.longValue();
+        return timeoutHeader != null ? timeoutHeader : 0;
+    }
+
+    private FlushPolicy flushPolicy(String accept, String encoding) {
+        final FlushPolicy flushPolicy = FlushPolicy.parse(accept);
+        if (flushPolicy != null) return flushPolicy;
+        return encoding != null ? writers.getCompressionFlushPolicy() : FlushPolicy.NEVER;
+    }
+
     private URI neoServerBaseUri(UriInfo uriInfo) {
         return uriInfo.getBaseUriBuilder().replacePath("/db/data/").build();
     }
 
+    private String contentType(String accept) {
+        if (accept == null) return MediaType.APPLICATION_JSON;
+        if (accept.contains(JsonResultWriters.NDJSON)) return JsonResultWriters.NDJSON;
+        if (accept.contains(JsonResultWriters.CSV)) return JsonResultWriters.CSV;
+        if (accept.contains(JsonResultWriters.TSV)) return JsonResultWriters.TSV;
+        return accept.contains(JsonResultWriters.SMILE) ? JsonResultWriters.SMILE : MediaType.APPLICATION_JSON;
+    }
+
     private JsonResultWriter writerFor(String accept, OutputStream output, final URI uri) throws IOException {
-        final JsonResultWriter writer = accept.contains(";mode=compat") ? writers.writeCompatTo(output, uri.toString()) : writers.writeTo(output);
+        if (accept == null) return writers.writeTo(output);
+        final boolean binary = contentType(accept).equals(JsonResultWriters.SMILE);
+        final JsonResultWriters writers = binary ? this.writers.binary() : this.writers;
+        final JsonResultWriter writer = accept.contains(JsonResultWriters.NDJSON) ? writers.writeNdjsonTo(output) :
+                accept.contains(JsonResultWriters.CSV) ? writers.writeCsvTo(output) :
+                accept.contains(JsonResultWriters.TSV) ? writers.writeTsvTo(output) :
+                accept.contains(";mode=none") ? writers.writeNothingTo(output) :
+                accept.contains(";mode=compat") ? writers.writeCompatTo(output, uri.toString()) :
+                accept.contains(";mode=compact") ? writers.writeCompactTo(output) : writers.writeTo(output);
         if (accept.contains(";format=pretty")) writer.usePrettyPrinter();
+        if (accept.contains(";dedup=true")) writer.useEntityReferences();
+        if (accept.contains(";cache=true")) writer.useEntityCache(JsonResultWriters.DEFAULT_ENTITY_CACHE_SIZE);
         return writer;
     }
 
-    private Map<String, Object> params(String body) throws IOException {
-        final Object params = new ObjectMapper().readValue(body, Object.class);
-        if (params instanceof Map) return (Map) params; // todo check keys
-        throw new IllegalArgumentException("Invalid input " + body);
-    }
-
 
 }
@@ -0,0 +1,122 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import org.neo4j.cypher.commands.Query;
+import org.neo4j.cypher.javacompat.CypherParser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded LRU cache of parsed queries, keyed by the whitespace-normalized query text.
+ * Parameters are not part of the key, so parameterized queries share one entry.
+ *
+ * @author mh
+ * @since 18.04.12
+ */
+public class CypherQueryCache {
+    private final CypherParser parser = new CypherParser();
+    private final Map<String, Query> cache;
+    private final int maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CypherQueryCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+                if (size() <= CypherQueryCache.this.maxSize) return false;
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    public Query getQuery(String query) {
+        final String key = normalize(query);
+        Query result;
+        synchronized (cache) {
+            result = cache.get(key);
+        }
+        if (result != null) {
+            hits.incrementAndGet();
+            return result;
+        }
+        misses.incrementAndGet();
+        result = parse(query);
+        synchronized (cache) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    public void warmUp(Iterable<String> queries) {
+        for (String query : queries) {
+            final String key = normalize(query);
+            if (key.length() == 0) continue;
+            final Query result = parse(query);
+            synchronized (cache) {
+                cache.put(key, result);
+            }
+        }
+    }
+
+    // the scala parser keeps state between calls
+    private Query parse(String query) {
+        synchronized (parser) {
+            return parser.parse(query);
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public Map<String, Object> stats() {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("size", size());
+        stats.put("maxSize", maxSize);
+        stats.put("hits", getHits());
+        stats.put("misses", getMisses());
+        stats.put("evictions", getEvictions());
+        return stats;
+    }
+
+    /**
+     * collapses whitespace outside of string literals, so that differently formatted queries share an entry
+     */
+    static String normalize(String query) {
+        final StringBuilder sb = new StringBuilder(query.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < query.length(); i++) {
+            final char c = query.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && sb.length() > 0) sb.append(' ');
+            space = false;
+            if (quote == 0 && (c == '"' || c == '\'')) quote = c;
+            else if (c == quote && query.charAt(i - 1) != '\\') quote = 0;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -1,14 +1,22 @@
 package org.neo4j.server.extension.streaming.cypher;
 
 import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * @author mh
@@ -16,18 +24,65 @@ import java.util.Map;
  */
 public class CypherResultReader {
     private final JsonFactory jsonFactory;
+    private final Set<String> selectedColumns;
 
     public CypherResultReader() {
         this(new JsonFactory(new ObjectMapper()));
     }
     public CypherResultReader(JsonFactory jsonFactory) {
+        this(jsonFactory, null);
+    }
+
+    private CypherResultReader(JsonFactory jsonFactory, Set<String> selectedColumns) {
         this.jsonFactory = jsonFactory;
+        this.selectedColumns = selectedColumns;
+    }
+
+    /**
+     * @return a reader that passes only the cells of the given columns, the other cells are skipped by the parser without
+     *         decoding them (except in deduplicated results, where they may contain entities referenced later)
+     */
+    public CypherResultReader selectColumns(String... columns) {
+        return new CypherResultReader(jsonFactory, new HashSet<String>(Arrays.asList(columns)));
+    }
+
+    /**
+     * @return per column whether its cells are skipped, null if all columns are read
+     */
+    private boolean[] skippedColumns(List<String> columns) {
+        if (selectedColumns == null || columns == null) return null;
+        final boolean[] skipped = new boolean[columns.size()];
+        for (int i = 0; i < skipped.length; i++) {
+            skipped[i] = !selectedColumns.contains(columns.get(i));
+        }
+        return skipped;
     }
 
+    private static boolean isSkipped(boolean[] skipped, int column, EntityReferenceResolver resolver) {
+        return skipped != null && resolver == null && column < skipped.length && skipped[column];
+    }
+
+    /**
+     * @return a reader for the binary Smile encoding (application/x-jackson-smile)
+     */
+    public static CypherResultReader binary() {
+        return new CypherResultReader(new SmileFactory(new ObjectMapper()));
+    }
+
+    /**
+     * For array framed output (batch endpoint, websocket commands) the hooks are called for each result in turn,
+     * columns() starts a result and the row index restarts at 0.
+     */
     public static class ResultCallback {
         public void columns(List<String> columns) {
         }
 
+        /**
+         * an entry of a query that failed, e.g. in a batch
+         */
+        public void error(String message, String exception) {
+        }
+
         public void row(int row) {
         }
 
@@ -41,41 +96,403 @@ public class CypherResultReader {
         }
     }
 
+    /**
+     * Reads a single result, its ndjson lines, or an array of results as written by the batch endpoint and websocket
+     * commands, where each result may be wrapped in an array of its own.
+     */
     public void readCypherResults(InputStream inputStream, ResultCallback callback) throws IOException {
         JsonParser jp = jsonFactory.createJsonParser(inputStream);
-        nextToken(jp); // will return JsonToken.START_OBJECT (verify?)
+        try {
+            JsonToken root = nextToken(jp);
+            if (root == JsonToken.START_ARRAY) { // array framing, ndjson row lines only follow a header
+                readFramedResults(jp, callback);
+                return;
+            }
+            final ReadState state = new ReadState();
+            while (root != null) { // the result object, or header, row and trailer lines of ndjson
+                if (root == JsonToken.START_ARRAY) { // ndjson row
+                    callback.row(state.row++);
+                    readRow(jp, callback, state.resolver, state.skipped);
+                } else {
+                    readResult(jp, callback, state);
+                }
+                root = nextToken(jp);
+            }
+        } finally {
+            jp.close();
+        }
+    }
+
+    private void readFramedResults(JsonParser jp, ResultCallback callback) throws IOException {
+        JsonToken token;
+        while ((token = nextToken(jp)) != JsonToken.END_ARRAY) {
+            if (token == JsonToken.START_OBJECT) readResult(jp, callback, new ReadState());
+            else if (token == JsonToken.START_ARRAY) readFramedResults(jp, callback); // frame per item
+            else throw new JsonParseException("Expected a result object or array in array framed results but got " + token, jp.getCurrentLocation());
+        }
+    }
+
+    /**
+     * resolver and column selection of the current result, which ndjson row lines share with their header
+     */
+    private static class ReadState {
+        private EntityReferenceResolver resolver;
+        private boolean[] skipped;
+        private int row;
+    }
+
+    /**
+     * reads the fields of a result object after its START_OBJECT
+     */
+    private void readResult(JsonParser jp, ResultCallback callback, ReadState state) throws IOException {
+        String error = null;
+        String exception = null;
         while (nextToken(jp) != JsonToken.END_OBJECT) {
             String field = jp.getCurrentName();
             final JsonToken token = jp.getCurrentToken();
             if (token == JsonToken.FIELD_NAME && field.equals("columns")) { // contains an object
                 nextToken(jp); // move to value, or START_OBJECT/START_ARRAY
-                callback.columns(jp.readValueAs(List.class));
+                final List<String> columns = jp.readValueAs(List.class);
+                state.skipped = skippedColumns(columns);
+                callback.columns(columns);
             }
             if (token == JsonToken.FIELD_NAME && field.equals("rows")) {
                 if (nextToken(jp) == JsonToken.START_ARRAY) { // array of rows
-                    int row = 0;
+                    String[] types = null;
                     while (nextToken(jp) != JsonToken.END_ARRAY) { // row
-                        callback.row(row++);
-                        readRow(jp, callback);
+                        if (jp.getCurrentToken() == JsonToken.START_OBJECT) { // compact mode column types
+                            types = readTypes(jp);
+                            continue;
+                        }
+                        callback.row(state.row++);
+                        if (types == null) readRow(jp, callback, state.resolver, state.skipped);
+                        else readCompactRow(jp, types, callback, state.resolver, state.skipped);
+                    }
+                }
+            }
+            if (token == JsonToken.FIELD_NAME && field.equals("data")) { // compat mode
+                if (nextToken(jp) == JsonToken.START_ARRAY) {
+                    while (nextToken(jp) != JsonToken.END_ARRAY) {
+                        callback.row(state.row++);
+                        readCompatRow(jp, callback, state.skipped);
                     }
                 }
             }
+            if (token == JsonToken.FIELD_NAME && field.equals("dedup") && nextToken(jp) == JsonToken.VALUE_TRUE) {
+                state.resolver = new EntityReferenceResolver();
+            }
             if (token == JsonToken.FIELD_NAME && field.equals("time") && nextToken(jp) == JsonToken.VALUE_NUMBER_INT) {
                 callback.time(jp.readValueAs(Integer.class));
             }
             if (token == JsonToken.FIELD_NAME && field.equals("count") && nextToken(jp) == JsonToken.VALUE_NUMBER_INT) {
                 callback.count(jp.readValueAs(Integer.class));
             }
+            if (token == JsonToken.FIELD_NAME && field.equals("error") && nextToken(jp) == JsonToken.VALUE_STRING) {
+                error = jp.getText();
+            }
+            if (token == JsonToken.FIELD_NAME && field.equals("exception") && nextToken(jp) == JsonToken.VALUE_STRING) {
+                exception = jp.getText();
+            }
         }
-        jp.close();
+        if (error != null || exception != null) callback.error(error, exception);
     }
 
-    private void readRow(JsonParser jp, ResultCallback callback) throws IOException {
+    /**
+     * Pulls the rows lazily from the stream, only the current row is kept in memory. The columns are available right away,
+     * the count and time trailer once the iterator is exhausted. {@link ResultIterator#close()} skips the rest of the
+     * result and closes the stream. Reads the default, compact, compat and ndjson layouts.
+     *
+     * @throws JsonParseException for an array of results (batch endpoint, websocket commands), which only
+     *                            {@link #readCypherResults} reads
+     */
+    public ResultIterator iterate(InputStream inputStream) throws IOException {
+        return new JsonResultIterator(jsonFactory.createJsonParser(inputStream));
+    }
+
+    /**
+     * Rows of a result as lists of cell values, pulled from the input on demand.
+     */
+    public abstract static class ResultIterator implements Iterator<List<Object>> {
+        protected List<String> columns;
+        protected String[] rowTypes;
+        protected Integer count;
+        protected Integer time;
+        private List<Object> next;
+        private String[] nextTypes;
+        private String[] returnedTypes;
+        private boolean done;
+
+        /**
+         * @return the next row or null at the end of the result, with its cell types in rowTypes
+         */
+        protected abstract List<Object> readNext() throws IOException;
+
+        protected abstract void closeInput() throws IOException;
+
+        public boolean hasNext() {
+            if (next != null) return true;
+            if (done) return false;
+            try {
+                next = readNext();
+                if (next != null) nextTypes = rowTypes == null ? null : rowTypes.clone(); // rowTypes is reused by the next read
+            } catch (IOException ioe) {
+                close();
+                throw new RuntimeException("Error reading cypher result", ioe);
+            }
+            return next != null;
+        }
+
+        public List<Object> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final List<Object> row = next;
+            returnedTypes = nextTypes;
+            next = null;
+            return row;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        /**
+         * @return the type of the cell in the last returned row, null for skipped cells
+         */
+        public String getType(int column) {
+            return returnedTypes == null ? null : returnedTypes[column];
+        }
+
+        /**
+         * @return the row count of the trailer, null before the iterator is exhausted or if it was closed early
+         */
+        public Integer getCount() {
+            return count;
+        }
+
+        public Integer getTime() {
+            return time;
+        }
+
+        protected void finish() throws IOException {
+            done = true;
+            closeInput();
+        }
+
+        /**
+         * skips the rest of the result and closes the stream
+         */
+        public void close() {
+            next = null;
+            if (done) return;
+            try {
+                finish();
+            } catch (IOException ioe) {
+                // ignore, the stream is given up anyway
+            }
+        }
+    }
+
+    private class JsonResultIterator extends ResultIterator {
+        private final JsonParser jp;
+        private boolean[] skipped;
+        private EntityReferenceResolver resolver;
+        private String[] types;
+        private boolean inRows;
+        private boolean compat;
+        private boolean lines;
+        private boolean pendingLine;
+
+        JsonResultIterator(JsonParser jp) throws IOException {
+            this.jp = jp;
+            if (nextToken(jp) == JsonToken.START_ARRAY) { // ndjson row lines only follow a header
+                jp.close();
+                throw new JsonParseException("The input is an array of results, as written by the batch endpoint or websocket commands, read it with readCypherResults", jp.getCurrentLocation());
+            }
+            readFields(); // up to the rows
+        }
+
+        /**
+         * reads the fields of a result object until the start of the rows or its end, ndjson continues after the
+         * header object with row lines and the trailer object
+         */
+        private void readFields() throws IOException {
+            while (nextToken(jp) == JsonToken.FIELD_NAME) {
+                final String field = jp.getCurrentName();
+                final JsonToken token = nextToken(jp);
+                if (field.equals("columns")) {
+                    columns = jp.readValueAs(List.class);
+                    skipped = skippedColumns(columns);
+                } else if ((field.equals("rows") || field.equals("data")) && token == JsonToken.START_ARRAY) {
+                    inRows = true;
+                    compat = field.equals("data");
+                    return;
+                } else if (field.equals("dedup") && token == JsonToken.VALUE_TRUE) {
+                    resolver = new EntityReferenceResolver();
+                } else if (field.equals("count") && token == JsonToken.VALUE_NUMBER_INT) {
+                    count = jp.getIntValue();
+                } else if (field.equals("time") && token == JsonToken.VALUE_NUMBER_INT) {
+                    time = jp.getIntValue();
+                } else {
+                    jp.skipChildren();
+                }
+            }
+            final JsonToken root = nextToken(jp);
+            if (root == JsonToken.START_ARRAY) { // ndjson row line
+                lines = true;
+                pendingLine = true;
+            } else if (root == JsonToken.START_OBJECT) { // ndjson trailer line
+                readFields();
+            } else {
+                finish();
+            }
+        }
+
+        protected List<Object> readNext() throws IOException {
+            while (inRows || lines) {
+                if (lines) {
+                    final JsonToken token = pendingLine ? JsonToken.START_ARRAY : nextToken(jp);
+                    pendingLine = false;
+                    if (token == JsonToken.START_ARRAY) return readRow();
+                    lines = false;
+                    if (token == JsonToken.START_OBJECT) readFields();
+                    else finish();
+                    continue;
+                }
+                final JsonToken token = nextToken(jp);
+                if (token == JsonToken.START_OBJECT) { // compact mode column types
+                    types = readTypes(jp);
+                    continue;
+                }
+                if (token == JsonToken.START_ARRAY) return compat ? readCompatRow() : types == null ? readRow() : readCompactRow();
+                inRows = false; // end of rows
+                readFields();
+            }
+            return null;
+        }
+
+        private List<Object> readRow() throws IOException {
+            final List<Object> row = new ArrayList<Object>(columns == null ? 4 : columns.size());
+            rowTypes = rowTypes == null || rowTypes == types ? new String[columns == null ? 4 : columns.size()] : rowTypes;
+            while (nextToken(jp) != JsonToken.END_ARRAY) {
+                if (row.size() == rowTypes.length) rowTypes = Arrays.copyOf(rowTypes, rowTypes.length * 2);
+                if (isSkipped(skipped, row.size(), resolver)) {
+                    jp.skipChildren();
+                    rowTypes[row.size()] = null;
+                    row.add(null);
+                    continue;
+                }
+                final Map<String, Object> cell = jp.readValueAs(Map.class);
+                final Map.Entry<String, Object> inner = cell.entrySet().iterator().next();
+                rowTypes[row.size()] = inner.getKey();
+                row.add(resolver == null ? inner.getValue() : resolver.resolve(inner.getValue()));
+            }
+            return row;
+        }
+
+        private List<Object> readCompactRow() throws IOException {
+            final List<Object> row = new ArrayList<Object>(types.length);
+            while (nextToken(jp) != JsonToken.END_ARRAY) {
+                if (isSkipped(skipped, row.size(), resolver)) {
+                    jp.skipChildren();
+                    row.add(null);
+                    continue;
+                }
+                final Object value = jp.readValueAs(Object.class);
+                row.add(resolver == null ? value : resolver.resolve(value));
+            }
+            rowTypes = types;
+            return row;
+        }
+
+        private List<Object> readCompatRow() throws IOException {
+            final List<Object> row = new ArrayList<Object>(columns == null ? 4 : columns.size());
+            rowTypes = rowTypes == null ? new String[columns == null ? 4 : columns.size()] : rowTypes;
+            while (nextToken(jp) != JsonToken.END_ARRAY) {
+                if (row.size() == rowTypes.length) rowTypes = Arrays.copyOf(rowTypes, rowTypes.length * 2);
+                if (isSkipped(skipped, row.size(), null)) {
+                    jp.skipChildren();
+                    rowTypes[row.size()] = null;
+                    row.add(null);
+                    continue;
+                }
+                final Object value = jp.readValueAs(Object.class);
+                rowTypes[row.size()] = typeOf(value);
+                row.add(value);
+            }
+            return row;
+        }
+
+        protected void closeInput() throws IOException {
+            inRows = false;
+            lines = false;
+            jp.close();
+        }
+    }
+
+    private void readRow(JsonParser jp, ResultCallback callback, EntityReferenceResolver resolver, boolean[] skipped) throws IOException {
         int column = 0;
         while (nextToken(jp) != JsonToken.END_ARRAY) { // row
+            if (isSkipped(skipped, column, resolver)) {
+                jp.skipChildren();
+                column++;
+                continue;
+            }
             final Map<String, Object> cell = jp.readValueAs(Map.class);
             final Map.Entry<String, Object> inner = cell.entrySet().iterator().next();
-            callback.cell(column++, inner.getKey(), inner.getValue());
+            final Object value = inner.getValue();
+            callback.cell(column++, inner.getKey(), resolver == null ? value : resolver.resolve(value));
+        }
+    }
+
+    private void readCompatRow(JsonParser jp, ResultCallback callback, boolean[] skipped) throws IOException {
+        int column = 0;
+        while (nextToken(jp) != JsonToken.END_ARRAY) { // row
+            if (isSkipped(skipped, column, null)) {
+                jp.skipChildren();
+                column++;
+                continue;
+            }
+            final Object value = jp.readValueAs(Object.class);
+            callback.cell(column++, typeOf(value), value);
+        }
+    }
+
+    /**
+     * infers the type of compat mode cells, which are written without type
+     */
+    static String typeOf(Object value) {
+        if (value == null) return "Null";
+        if (value instanceof Map) {
+            final Map map = (Map) value;
+            final Object self = map.get("self");
+            if (self != null) return self.toString().contains("/relationship/") ? "Relationship" : "Node";
+            if (map.containsKey("nodes") && map.containsKey("relationships")) return "Path";
+            return "Map";
+        }
+        if (value instanceof List) return "Array";
+        return value.getClass().getSimpleName();
+    }
+
+    private String[] readTypes(JsonParser jp) throws IOException {
+        final Map<String, List<String>> types = jp.readValueAs(Map.class);
+        return types.get("types").toArray(new String[0]);
+    }
+
+    private void readCompactRow(JsonParser jp, String[] types, ResultCallback callback, EntityReferenceResolver resolver, boolean[] skipped) throws IOException {
+        int column = 0;
+        while (nextToken(jp) != JsonToken.END_ARRAY) { // row
+            if (isSkipped(skipped, column, resolver)) {
+                jp.skipChildren();
+                column++;
+                continue;
+            }
+            Object value = jp.readValueAs(Object.class);
+            if (resolver != null) value = resolver.resolve(value);
+            callback.cell(column, value == null ? "Null" : types[column], value);
+            column++;
         }
     }
 
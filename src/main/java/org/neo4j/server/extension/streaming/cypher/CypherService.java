@@ -3,27 +3,291 @@ package org.neo4j.server.extension.streaming.cypher;
 import org.neo4j.cypher.javacompat.ExecutionEngine;
 import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.*;
+import org.neo4j.kernel.AbstractGraphDatabase;
+import org.neo4j.kernel.guard.Guard;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriter;
+import org.neo4j.server.extension.streaming.cypher.json.Projection;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Thread-safe, a single instance is shared by all requests (see {@link CypherExtensionInitializer}).
+ *
  * @author mh
  * @since 13.04.12
  */
-class CypherService {
+public class CypherService {
+    public static final int DEFAULT_QUERY_CACHE_SIZE = 500;
+
     private final ExecutionEngine engine;
+    private final CypherQueryCache queryCache;
+    private final CursorRegistry cursors;
+    private final ParallelQueryExecutor parallel;
+    private final GraphDatabaseService gdb;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public CypherService(final GraphDatabaseService gdb) {
+        this(gdb, DEFAULT_QUERY_CACHE_SIZE);
+    }
+
+    public CypherService(final GraphDatabaseService gdb, int queryCacheSize) {
+        this(gdb, queryCacheSize, new CursorRegistry(CursorRegistry.DEFAULT_MAX_CURSORS, CursorRegistry.DEFAULT_IDLE_TTL_MILLIS));
+    }
+
+    public CypherService(final GraphDatabaseService gdb, int queryCacheSize, CursorRegistry cursors) {
+        this(gdb, queryCacheSize, cursors, ParallelQueryExecutor.DEFAULT_THREADS, ParallelQueryExecutor.DEFAULT_BUFFERED_ROWS);
+    }
 
-    CypherService(final GraphDatabaseService gdb) {
+    /**
+     * @param parallelism  threads for executing the read queries of a batch concurrently
+     * @param bufferedRows rows buffered per concurrently executed query until it is written
+     */
+    public CypherService(final GraphDatabaseService gdb, int queryCacheSize, CursorRegistry cursors, int parallelism, int bufferedRows) {
+        this.gdb = gdb;
         engine = new ExecutionEngine(gdb);
+        queryCache = new CypherQueryCache(queryCacheSize);
+        this.cursors = cursors;
+        this.parallel = new ParallelQueryExecutor(this, parallelism, bufferedRows);
+    }
+
+    public void execute(String query, Map<String, Object> params, JsonResultWriter writer) throws IOException {
+        execute(query, params, writer, 0);
     }
 
-    void execute(String query, Map<String, Object> params, JsonResultWriter writer) throws IOException {
-        long start = System.currentTimeMillis();
-        final ExecutionResult result = engine.execute(query,params!=null ? params : Collections.<String,Object>emptyMap());
-        writer.writeResult(result, start);
+    /**
+     * @param timeoutMillis maximum time for executing the query and writing the result, 0 for no limit
+     */
+    public void execute(String query, Map<String, Object> params, JsonResultWriter writer, long timeoutMillis) throws IOException {
+        writeResult(query, params, writer, timeoutMillis);
         writer.close();
     }
+
+    /**
+     * Executes the query and writes the result, stops iterating the result when the deadline has passed (also inside
+     * of the kernel if its execution guard is enabled) or the output is broken. The outcome is counted in the stats.
+     *
+     * @param timeoutMillis maximum time for executing the query and writing the result, 0 for no limit
+     * @throws QueryTimeoutException   if the deadline has passed
+     * @throws QueryExecutionException if the query could not be executed, before anything was written
+     * @throws IOException             if the client went away
+     */
+    public ExecutionResult writeResult(String query, Map<String, Object> params, JsonResultWriter writer, long timeoutMillis) throws IOException {
+        final long start = System.currentTimeMillis();
+        final long deadline = timeoutMillis > 0 ? start + timeoutMillis : Long.MAX_VALUE;
+        final Guard guard = startGuard(timeoutMillis);
+        try {
+            ExecutionResult result;
+            try {
+                result = executeQuery(query, params);
+            } catch (RuntimeException re) {
+                throw new QueryExecutionException(query, re); // nothing written yet
+            }
+            if (timeoutMillis > 0) result = new DeadlineExecutionResult(result, deadline, timeoutMillis);
+            writer.writeResult(result, start);
+            completed.incrementAndGet();
+            return result;
+        } catch (IOException ioe) {
+            cancelled.incrementAndGet();
+            throw ioe;
+        } catch (RuntimeException re) {
+            throw countFailure(re, deadline, timeoutMillis);
+        } finally {
+            if (guard != null) guard.stop();
+        }
+    }
+
+    /**
+     * arms the kernel guard of the current thread, the caller stops the returned guard
+     *
+     * @return the guard or null without timeout or if the execution guard is not enabled
+     */
+    Guard startGuard(long timeoutMillis) {
+        final Guard guard = timeoutMillis > 0 ? guard() : null;
+        if (guard != null) guard.startTimeout(timeoutMillis);
+        return guard;
+    }
+
+    /**
+     * counts a failed execution, failures after the deadline (e.g. stopped by the kernel guard) are timeouts
+     *
+     * @param deadline Long.MAX_VALUE for no deadline
+     * @return the exception to throw or report
+     */
+    RuntimeException countFailure(RuntimeException e, long deadline, long timeoutMillis) {
+        if (e instanceof QueryTimeoutException) {
+            timedOut.incrementAndGet();
+            return e;
+        }
+        if (System.currentTimeMillis() > deadline) {
+            timedOut.incrementAndGet();
+            return new QueryTimeoutException(timeoutMillis, e);
+        }
+        failed.incrementAndGet();
+        return e;
+    }
+
+    /**
+     * counts a deadline that passed between the queries of a batch or the commands of a request
+     *
+     * @return the exception to report in place of the next query or command
+     */
+    public QueryTimeoutException countTimeout(long timeoutMillis) {
+        timedOut.incrementAndGet();
+        return new QueryTimeoutException(timeoutMillis);
+    }
+
+    void countCompleted() {
+        completed.incrementAndGet();
+    }
+
+    void countCancelled() {
+        cancelled.incrementAndGet();
+    }
+
+    /**
+     * Writes the results of the queries { query, params, projection } in order as one array. Queries that can't be
+     * executed are written as error entries, failures while streaming a result abort the batch. When the deadline passed
+     * between two queries a timeout entry ends the array and the transaction is rolled back.
+     *
+     * @param transaction   run all queries within one transaction
+     * @param timeoutMillis deadline for the whole batch, 0 for no limit
+     */
+    public void executeBatch(List<Map<String, Object>> queries, JsonResultWriter writer, boolean transaction, long timeoutMillis) throws IOException {
+        executeBatch(queries, writer, transaction, timeoutMillis, false);
+    }
+
+    /**
+     * @param parallel execute the queries concurrently if they are all reads and don't need a common transaction,
+     *                 the results are still written in order
+     */
+    public void executeBatch(List<Map<String, Object>> queries, JsonResultWriter writer, boolean transaction, long timeoutMillis, boolean parallel) throws IOException {
+        if (parallel && !transaction && isReadOnly(queries)) {
+            writer.startArray();
+            writeParallel(queries, writer, false, timeoutMillis);
+            writer.endArray();
+            return;
+        }
+        final long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+        final Transaction tx = transaction ? gdb.beginTx() : null;
+        try {
+            writer.startArray();
+            boolean timedOut = false;
+            for (Map<String, Object> item : queries) {
+                final long start = System.currentTimeMillis();
+                final long timeout = deadline == 0 ? 0 : deadline - start;
+                if (deadline != 0 && timeout <= 0) {
+                    writer.writeError(countTimeout(timeoutMillis), start);
+                    timedOut = true;
+                    break;
+                }
+                try {
+                    writer.useProjection(Projection.from(item.get("projection")));
+                    writeResult((String) item.get("query"), (Map<String, Object>) item.get("params"), writer, timeout);
+                } catch (QueryExecutionException qee) {
+                    writer.writeError(qee.getCause(), start);
+                } catch (IllegalArgumentException iae) {
+                    writer.writeError(iae, start);
+                }
+            }
+            writer.useProjection(Projection.ALL);
+            writer.endArray();
+            if (tx != null && !timedOut) tx.success();
+        } finally {
+            if (tx != null) tx.finish();
+        }
+    }
+
+    /**
+     * Executes the read queries { query, params, projection } concurrently and writes their results in order, queries
+     * that can't be executed are written as error entries.
+     *
+     * @param framePerItem wrap each result in its own array
+     */
+    public void writeParallel(List<Map<String, Object>> queries, JsonResultWriter writer, boolean framePerItem, long timeoutMillis) throws IOException {
+        parallel.writeInOrder(queries, writer, framePerItem, timeoutMillis);
+    }
+
+    private static boolean isReadOnly(List<Map<String, Object>> queries) {
+        for (Map<String, Object> query : queries) {
+            if (AdmissionController.isWrite((String) query.get("query"))) return false;
+        }
+        return true;
+    }
+
+    private Guard guard() {
+        return gdb instanceof AbstractGraphDatabase ? ((AbstractGraphDatabase) gdb).getGuard() : null;
+    }
+
+    public ExecutionResult executeQuery(String query, Map<String, Object> params) {
+        return engine.execute(queryCache.getQuery(query), params != null ? params : Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * executes the query and keeps the result open as cursor, the rows are fetched page-wise with {@link #fetch}
+     *
+     * @throws TooManyCursorsException if there are too many open cursors
+     */
+    public CursorRegistry.Cursor openCursor(String query, Map<String, Object> params, Projection projection) {
+        return cursors.open(executeQuery(query, params), projection, AdmissionController.isWrite(query));
+    }
+
+    /**
+     * writes the next page of up to limit rows of the cursor, the cursor is closed after the last row or if the page
+     * failed
+     *
+     * @return the number of rows written
+     */
+    public int fetch(CursorRegistry.Cursor cursor, int limit, JsonResultWriter writer) throws IOException {
+        final long start = System.currentTimeMillis();
+        synchronized (cursor) {
+            writer.useProjection(cursor.getProjection());
+            try {
+                final int count = writer.writePage(cursor.getId(), cursor.getColumns(), cursor.getRows(), limit, start);
+                cursors.fetched(count);
+                if (!cursor.getRows().hasNext()) cursors.close(cursor.getId());
+                return count;
+            } catch (IOException ioe) {
+                cursors.close(cursor.getId()); // the rows of the broken page are lost
+                throw ioe;
+            } catch (RuntimeException re) {
+                cursors.close(cursor.getId()); // a failed result can't be continued
+                throw re;
+            }
+        }
+    }
+
+    public CursorRegistry getCursors() {
+        return cursors;
+    }
+
+    public CypherQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    public Map<String, Object> stats() {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("queryCache", queryCache.stats());
+        stats.put("cursors", cursors.stats());
+        final Map<String, Object> executions = new LinkedHashMap<String, Object>();
+        executions.put("completed", completed.get());
+        executions.put("cancelled", cancelled.get());
+        executions.put("timedOut", timedOut.get());
+        executions.put("failed", failed.get());
+        stats.put("executions", executions);
+        stats.put("parallel", parallel.stats());
+        return stats;
+    }
+
+    public void shutdown() {
+        cursors.shutdown();
+        parallel.shutdown();
+    }
 }
@@ -0,0 +1,52 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import org.neo4j.cypher.javacompat.ExecutionResult;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the deadline before each further row, so the writers stop iterating the result when the request timed out. A
+ * result whose rows were all written in time is not failed by the final hasNext().
+ *
+ * @author mh
+ * @since 24.04.12
+ */
+class DeadlineExecutionResult extends ExecutionResult {
+    private final ExecutionResult result;
+    private final long deadline;
+    private final long timeoutMillis;
+
+    DeadlineExecutionResult(ExecutionResult result, long deadline, long timeoutMillis) {
+        super(null);
+        this.result = result;
+        this.deadline = deadline;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public List<String> columns() {
+        return result.columns();
+    }
+
+    @Override
+    public Iterator<Map<String, Object>> iterator() {
+        final Iterator<Map<String, Object>> rows = result.iterator();
+        return new Iterator<Map<String, Object>>() {
+            public boolean hasNext() {
+                if (!rows.hasNext()) return false;
+                if (System.currentTimeMillis() > deadline) throw new QueryTimeoutException(timeoutMillis);
+                return true;
+            }
+
+            public Map<String, Object> next() {
+                return rows.next();
+            }
+
+            public void remove() {
+                rows.remove();
+            }
+        };
+    }
+}
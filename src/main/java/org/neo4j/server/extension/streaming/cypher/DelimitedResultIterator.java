@@ -0,0 +1,140 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads CSV (RFC 4180 quoting) and TSV (backslash escapes) results as written by the delimited result writer, the first
+ * line contains the columns. Cells are strings, empty unquoted cells are null. There is no trailer, the count is the
+ * number of rows read once the iterator is exhausted. An error line (starting with an unquoted '#error') fails the
+ * iteration with an IOException carrying its exception and message.
+ *
+ * @author mh
+ * @since 01.05.12
+ */
+class DelimitedResultIterator extends CypherResultReader.ResultIterator {
+    private final Reader reader;
+    private final boolean csv;
+    private final char separator;
+    private final boolean[] skipped;
+    private final StringBuilder cell = new StringBuilder();
+    private int rows;
+    private boolean marked; // the last line started with an unquoted '#'
+
+    DelimitedResultIterator(InputStream input, boolean csv, Set<String> selectedColumns) throws IOException {
+        this.reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+        this.csv = csv;
+        this.separator = csv ? ',' : '\t';
+        final List<Object> header = checkError(readLine());
+        columns = new ArrayList<String>();
+        if (header != null) {
+            for (Object column : header) {
+                columns.add(String.valueOf(column));
+            }
+        }
+        skipped = new boolean[columns.size()];
+        for (int i = 0; i < skipped.length; i++) {
+            skipped[i] = selectedColumns != null && !selectedColumns.contains(columns.get(i));
+        }
+        rowTypes = new String[columns.size()];
+        if (header == null) {
+            columns = Collections.emptyList();
+            count = 0;
+            finish();
+        }
+    }
+
+    protected List<Object> readNext() throws IOException {
+        final List<Object> row = checkError(readLine());
+        if (row == null) {
+            count = rows;
+            finish();
+            return null;
+        }
+        rows++;
+        if (rowTypes.length < row.size()) rowTypes = new String[row.size()];
+        for (int i = 0; i < row.size(); i++) {
+            if (i < skipped.length && skipped[i]) row.set(i, null);
+            rowTypes[i] = i < skipped.length && skipped[i] ? null : row.get(i) == null ? "Null" : "String";
+        }
+        return row;
+    }
+
+    private List<Object> checkError(List<Object> line) throws IOException {
+        if (!marked || line == null || !"#error".equals(line.get(0))) return line;
+        finish();
+        throw new IOException("Error entry in result: " + (line.size() > 1 ? line.get(1) : null) + ": " + (line.size() > 2 ? line.get(2) : null));
+    }
+
+    /**
+     * @return the cells of the next line, null at the end of the input
+     */
+    private List<Object> readLine() throws IOException {
+        int c = reader.read();
+        if (c == -1) return null;
+        marked = c == '#';
+        final List<Object> cells = new ArrayList<Object>(columns == null ? 8 : columns.size());
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        while (true) {
+            if (c == -1) {
+                addCell(cells, wasQuoted);
+                return cells;
+            }
+            if (quoted) {
+                if (c == '"') {
+                    c = reader.read();
+                    if (c == '"') { // escaped quote
+                        cell.append('"');
+                        c = reader.read();
+                    } else {
+                        quoted = false;
+                    }
+                    continue;
+                }
+                cell.append((char) c);
+            } else if (csv && c == '"') {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == separator) {
+                addCell(cells, wasQuoted);
+                wasQuoted = false;
+            } else if (c == '\n') {
+                addCell(cells, wasQuoted);
+                return cells;
+            } else if (c == '\r') {
+                // part of the csv line end
+            } else if (!csv && c == '\\') {
+                c = reader.read();
+                switch (c) {
+                    case 't': cell.append('\t'); break;
+                    case 'n': cell.append('\n'); break;
+                    case 'r': cell.append('\r'); break;
+                    case '\\': cell.append('\\'); break;
+                    case '#': cell.append('#'); break;
+                    case -1: cell.append('\\'); continue;
+                    default: cell.append('\\').append((char) c);
+                }
+            } else {
+                cell.append((char) c);
+            }
+            c = reader.read();
+        }
+    }
+
+    private void addCell(List<Object> cells, boolean wasQuoted) {
+        cells.add(cell.length() == 0 && !wasQuoted ? null : cell.toString());
+        cell.setLength(0);
+    }
+
+    protected void closeInput() throws IOException {
+        reader.close();
+    }
+}
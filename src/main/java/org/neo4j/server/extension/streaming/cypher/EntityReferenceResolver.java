@@ -0,0 +1,49 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * Replaces the {"node":id} and {"relationship":id} references of deduplicated results with the
+ * entities that were sent in full earlier in the same response.
+ *
+ * @author mh
+ * @since 19.04.12
+ */
+class EntityReferenceResolver {
+    private final Map<Number, Object> nodes = new HashMap<Number, Object>();
+    private final Map<Number, Object> relationships = new HashMap<Number, Object>();
+
+    @SuppressWarnings("unchecked")
+    Object resolve(Object value) {
+        if (value instanceof List) {
+            final ListIterator<Object> it = ((List<Object>) value).listIterator();
+            while (it.hasNext()) {
+                it.set(resolve(it.next()));
+            }
+            return value;
+        }
+        if (!(value instanceof Map)) return value;
+        final Map<String, Object> map = (Map<String, Object>) value;
+        if (map.size() == 1) {
+            if (map.containsKey("node")) return nodes.get(number(map.get("node")));
+            if (map.containsKey("relationship")) return relationships.get(number(map.get("relationship")));
+        }
+        if (map.containsKey("id")) {
+            final boolean relationship = map.containsKey("type") && map.containsKey("start");
+            (relationship ? relationships : nodes).put(number(map.get("id")), map);
+            return map;
+        }
+        for (Map.Entry<String, Object> entry : map.entrySet()) { // paths
+            entry.setValue(resolve(entry.getValue()));
+        }
+        return map;
+    }
+
+    // ids are decoded as Integer or Long depending on their size
+    private Number number(Object id) {
+        return ((Number) id).longValue();
+    }
+}
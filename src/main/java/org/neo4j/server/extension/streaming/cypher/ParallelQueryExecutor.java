@@ -0,0 +1,246 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import org.neo4j.cypher.javacompat.ExecutionResult;
+import org.neo4j.kernel.guard.Guard;
+import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriter;
+import org.neo4j.server.extension.streaming.cypher.json.Projection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes independent read queries concurrently on a bounded pool. Each query buffers at most bufferedRows rows
+ * on its pool thread, the results are written in request order by the calling thread, which continues to iterate
+ * results that have more rows than the buffer. A call has at most threads queries in flight, the next one is submitted
+ * when a result was written, so a batch holds at most threads * bufferedRows rows and large batches don't crowd the
+ * pool queue ahead of other requests.
+ *
+ * @author mh
+ * @since 27.04.12
+ */
+public class ParallelQueryExecutor {
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_BUFFERED_ROWS = 1000;
+
+    private final CypherService service;
+    private final ExecutorService pool;
+    private final int threads;
+    private final int bufferedRows;
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+
+    public ParallelQueryExecutor(CypherService service, int threads, int bufferedRows) {
+        this.service = service;
+        this.threads = threads;
+        this.bufferedRows = bufferedRows;
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "cypher-parallel-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Executes the queries { query, params, projection } concurrently and writes their results or errors in order.
+     *
+     * @param framePerItem wrap each result in an array, like the results of websocket commands
+     * @param timeoutMillis deadline for all queries, 0 for no limit
+     */
+    public void writeInOrder(List<Map<String, Object>> queries, JsonResultWriter writer, boolean framePerItem, long timeoutMillis) throws IOException {
+        final long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+        final List<Future<BufferedResult>> results = new ArrayList<Future<BufferedResult>>(queries.size());
+        for (int i = 0; i < Math.min(threads, queries.size()); i++) {
+            results.add(pool.submit(new BufferingQuery(queries.get(i), deadline, timeoutMillis)));
+        }
+        try {
+            for (int i = 0; i < queries.size(); i++) {
+                final BufferedResult result = get(results.get(i));
+                if (framePerItem) writer.startArray();
+                result.writeTo(writer);
+                if (framePerItem) writer.endArray();
+                if (results.size() < queries.size()) { // keep the window of queries in flight
+                    results.add(pool.submit(new BufferingQuery(queries.get(results.size()), deadline, timeoutMillis)));
+                }
+            }
+        } finally {
+            for (Future<BufferedResult> future : results) {
+                future.cancel(false); // interrupting the kernel could close its store channels
+            }
+        }
+    }
+
+    private BufferedResult get(Future<BufferedResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for query result");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private class BufferingQuery implements Callable<BufferedResult> {
+        private final Map<String, Object> query;
+        private final long deadline;
+        private final long timeoutMillis;
+
+        BufferingQuery(Map<String, Object> query, long deadline, long timeoutMillis) {
+            this.query = query;
+            this.deadline = deadline;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * executes the query and fills the buffer with the kernel guard armed, failures are counted and returned as
+         * error result, as nothing of the query was written yet
+         */
+        public BufferedResult call() {
+            final long start = System.currentTimeMillis();
+            executed.incrementAndGet();
+            final Guard guard = service.startGuard(remaining(deadline));
+            try {
+                if (deadline != 0 && start > deadline) throw new QueryTimeoutException(timeoutMillis);
+                final Projection projection = Projection.from(query.get("projection"));
+                final String statement = (String) query.get("query");
+                ExecutionResult result;
+                try {
+                    result = service.executeQuery(statement, (Map<String, Object>) query.get("params"));
+                } catch (RuntimeException re) {
+                    throw new QueryExecutionException(statement, re);
+                }
+                if (deadline != 0) result = new DeadlineExecutionResult(result, deadline, timeoutMillis);
+                final Iterator<Map<String, Object>> rows = result.iterator();
+                final List<Map<String, Object>> buffer = new ArrayList<Map<String, Object>>();
+                while (buffer.size() < bufferedRows && rows.hasNext()) {
+                    buffer.add(rows.next());
+                }
+                if (rows.hasNext()) overflowed.incrementAndGet();
+                return new BufferedResult(result.columns(), buffer, rows, projection, start, deadline, timeoutMillis);
+            } catch (RuntimeException e) {
+                return new BufferedResult(service.countFailure(e, deadline == 0 ? Long.MAX_VALUE : deadline, timeoutMillis), start);
+            } finally {
+                if (guard != null) guard.stop();
+            }
+        }
+    }
+
+    /**
+     * @return the time left until the deadline for arming the guard, at least 1 ms, 0 without deadline
+     */
+    private static long remaining(long deadline) {
+        return deadline == 0 ? 0 : Math.max(deadline - System.currentTimeMillis(), 1);
+    }
+
+    private class BufferedResult {
+        private final List<String> columns;
+        private final List<Map<String, Object>> buffer;
+        private final Iterator<Map<String, Object>> rest;
+        private final Projection projection;
+        private final RuntimeException error;
+        private final long start;
+        private final long deadline;
+        private final long timeoutMillis;
+
+        BufferedResult(List<String> columns, List<Map<String, Object>> buffer, Iterator<Map<String, Object>> rest, Projection projection,
+                       long start, long deadline, long timeoutMillis) {
+            this.columns = columns;
+            this.buffer = buffer;
+            this.rest = rest;
+            this.projection = projection;
+            this.error = null;
+            this.start = start;
+            this.deadline = deadline;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        BufferedResult(RuntimeException error, long start) {
+            this.columns = null;
+            this.buffer = null;
+            this.rest = null;
+            this.projection = null;
+            this.error = error;
+            this.start = start;
+            this.deadline = 0;
+            this.timeoutMillis = 0;
+        }
+
+        /**
+         * writes the error entry or the rows, the rows that did not fit into the buffer are iterated with the guard
+         * armed on the writing thread and the outcome is counted like {@link CypherService#writeResult}
+         */
+        void writeTo(JsonResultWriter writer) throws IOException {
+            if (error != null) {
+                writer.writeError(error instanceof QueryExecutionException ? error.getCause() : error, start);
+                return;
+            }
+            final Guard guard = service.startGuard(remaining(deadline));
+            writer.useProjection(projection);
+            try {
+                writer.writeResult(columns, rows(), start);
+                service.countCompleted();
+            } catch (IOException ioe) {
+                service.countCancelled();
+                throw ioe;
+            } catch (RuntimeException re) {
+                throw service.countFailure(re, deadline == 0 ? Long.MAX_VALUE : deadline, timeoutMillis);
+            } finally {
+                writer.useProjection(Projection.ALL);
+                if (guard != null) guard.stop();
+            }
+        }
+
+        /**
+         * the buffered rows followed by the rows that did not fit into the buffer
+         */
+        private Iterator<Map<String, Object>> rows() {
+            final Iterator<Map<String, Object>> buffered = buffer.iterator();
+            return new Iterator<Map<String, Object>>() {
+                public boolean hasNext() {
+                    return buffered.hasNext() || rest.hasNext();
+                }
+
+                public Map<String, Object> next() {
+                    if (buffered.hasNext()) return buffered.next();
+                    if (rest.hasNext()) return rest.next();
+                    throw new NoSuchElementException();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public Map<String, Object> stats() {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("threads", threads);
+        stats.put("bufferedRows", bufferedRows);
+        stats.put("executed", executed.get());
+        stats.put("overflowed", overflowed.get());
+        return stats;
+    }
+}
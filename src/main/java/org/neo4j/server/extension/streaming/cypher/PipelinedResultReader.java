@@ -0,0 +1,289 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decodes the rows of a cypher result on the calling thread into batches that are handed to consumer threads via a
+ * bounded lock-free ring buffer, so that parsing and (expensive) row processing run in parallel. Unordered mode processes
+ * the batches on several consumers concurrently, the rows within a batch stay in order. Ordered mode hands the batches
+ * to the handler in result order, one at a time; with several consumers only the {@link OrderedRowHandler#process}
+ * step runs concurrently. The memory is bounded by ring size * batch size rows.
+ *
+ * @author mh
+ * @since 30.04.12
+ */
+public class PipelinedResultReader {
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final int DEFAULT_RING_SIZE = 64;
+
+    private final CypherResultReader reader;
+    private final int consumers;
+    private final int batchSize;
+    private final int ringSize;
+    private final boolean ordered;
+    private final ExecutorService pool;
+
+    /**
+     * @param consumers number of consumer threads
+     * @param ringSize  number of batches in flight, rounded up to a power of two
+     */
+    public PipelinedResultReader(CypherResultReader reader, boolean ordered, int consumers, int batchSize, int ringSize) {
+        this.reader = reader;
+        this.ordered = ordered;
+        this.consumers = consumers;
+        this.batchSize = batchSize;
+        this.ringSize = Integer.highestOneBit(Math.max(ringSize, 2) * 2 - 1);
+        this.pool = Executors.newFixedThreadPool(this.consumers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "cypher-result-consumer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static PipelinedResultReader ordered(CypherResultReader reader) {
+        return ordered(reader, 1);
+    }
+
+    /**
+     * several consumers only pay off with an {@link OrderedRowHandler} that does the heavy work in process()
+     */
+    public static PipelinedResultReader ordered(CypherResultReader reader, int consumers) {
+        return new PipelinedResultReader(reader, true, consumers, DEFAULT_BATCH_SIZE, DEFAULT_RING_SIZE);
+    }
+
+    public static PipelinedResultReader unordered(CypherResultReader reader, int consumers) {
+        return new PipelinedResultReader(reader, false, consumers, DEFAULT_BATCH_SIZE, DEFAULT_RING_SIZE);
+    }
+
+    /**
+     * must be thread-safe in unordered mode with several consumers, in ordered mode row() is called by one thread at a time
+     */
+    public static class RowHandler {
+        public void columns(List<String> columns) {
+        }
+
+        public void row(List<Object> row) {
+        }
+
+        public void count(int count) {
+        }
+
+        public void time(int time) {
+        }
+    }
+
+    /**
+     * Splits the row processing for ordered mode: process() runs concurrently on the consumers, its results are passed
+     * to accept() in result order by one thread at a time. row() is not called.
+     */
+    public static class OrderedRowHandler<T> extends RowHandler {
+        public T process(List<Object> row) {
+            return null;
+        }
+
+        public void accept(T processed) {
+        }
+    }
+
+    /**
+     * Reads and dispatches all rows, returns after all batches are processed.
+     *
+     * @throws IOException if the input can't be read or a consumer failed, the rest of the result is skipped then
+     */
+    public void readCypherResults(InputStream inputStream, final RowHandler handler) throws IOException {
+        final CypherResultReader.ResultIterator rows = reader.iterate(inputStream);
+        handler.columns(rows.getColumns());
+        final BatchRing ring = new BatchRing(ringSize);
+        final List<Future<?>> futures = new ArrayList<Future<?>>(consumers);
+        for (int i = 0; i < consumers; i++) {
+            futures.add(pool.submit(new Runnable() {
+                public void run() {
+                    try {
+                        Batch batch;
+                        while ((batch = ring.take()) != null) {
+                            if (ordered) {
+                                handleInOrder(ring, batch, handler);
+                            } else {
+                                for (List<Object> row : batch.rows) {
+                                    handler.row(row);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) { // also errors, otherwise the producer waits forever on a full ring
+                        ring.fail(e);
+                    }
+                }
+            }));
+        }
+        try {
+            List<List<Object>> batch = new ArrayList<List<Object>>(batchSize);
+            while (!ring.isFailed() && rows.hasNext()) {
+                batch.add(rows.next());
+                if (batch.size() == batchSize) {
+                    ring.put(batch);
+                    batch = new ArrayList<List<Object>>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) ring.put(batch);
+        } catch (RuntimeException e) {
+            ring.fail(e);
+        } catch (Error e) {
+            ring.fail(e);
+            throw e;
+        } finally {
+            ring.close();
+            rows.close();
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                // the cause is kept by the ring
+            }
+        }
+        if (ring.getFailure() != null) throw new IOException("Error reading cypher result: " + ring.getFailure().getMessage(), ring.getFailure());
+        if (rows.getCount() != null) handler.count(rows.getCount());
+        if (rows.getTime() != null) handler.time(rows.getTime());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void handleInOrder(BatchRing ring, Batch batch, RowHandler handler) {
+        if (handler instanceof OrderedRowHandler) {
+            final OrderedRowHandler<Object> orderedHandler = (OrderedRowHandler<Object>) handler;
+            final List<Object> processed = new ArrayList<Object>(batch.rows.size());
+            for (List<Object> row : batch.rows) {
+                processed.add(orderedHandler.process(row));
+            }
+            if (!ring.awaitTurn(batch.sequence)) return;
+            for (Object value : processed) {
+                orderedHandler.accept(value);
+            }
+        } else {
+            if (!ring.awaitTurn(batch.sequence)) return;
+            for (List<Object> row : batch.rows) {
+                handler.row(row);
+            }
+        }
+        ring.handed(batch.sequence);
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Single producer, multiple consumer ring of batches. The producer publishes a slot by advancing the tail, consumers
+     * claim slots by a CAS on the head, so batches are claimed in sequence. In ordered mode a consumer waits for the
+     * hand-off of the previous batch before passing its own on. Waiting sides spin, yield and then park briefly.
+     */
+    static class BatchRing {
+        private static final int SPINS = 100;
+        private static final long PARK_NANOS = 50 * 1000;
+
+        private final AtomicReferenceArray<Batch> slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong handed = new AtomicLong();
+        private volatile boolean closed;
+        private volatile Throwable failure;
+
+        BatchRing(int size) {
+            slots = new AtomicReferenceArray<Batch>(size);
+            mask = size - 1;
+        }
+
+        void put(List<List<Object>> batch) {
+            final long position = tail.get();
+            int idle = 0;
+            while (position - head.get() > mask) { // full
+                if (failure != null) return;
+                idle = idle(idle);
+            }
+            slots.set((int) (position & mask), new Batch(position, batch));
+            tail.set(position + 1);
+        }
+
+        /**
+         * @return the next batch or null when the ring is closed and drained or failed
+         */
+        Batch take() {
+            int idle = 0;
+            while (failure == null) {
+                final long position = head.get();
+                if (position < tail.get()) {
+                    final Batch batch = slots.get((int) (position & mask));
+                    if (head.compareAndSet(position, position + 1)) return batch;
+                    continue;
+                }
+                if (closed && position >= tail.get()) return null;
+                idle = idle(idle);
+            }
+            return null;
+        }
+
+        /**
+         * @return false if the ring failed while waiting for the batches before the given one to be handed off
+         */
+        boolean awaitTurn(long sequence) {
+            int idle = 0;
+            while (handed.get() != sequence) {
+                if (failure != null) return false;
+                idle = idle(idle);
+            }
+            return failure == null;
+        }
+
+        void handed(long sequence) {
+            handed.set(sequence + 1);
+        }
+
+        private int idle(int idle) {
+            if (idle < SPINS) return idle + 1;
+            if (idle < 2 * SPINS) Thread.yield();
+            else LockSupport.parkNanos(PARK_NANOS);
+            return idle < 2 * SPINS ? idle + 1 : idle;
+        }
+
+        void close() {
+            closed = true;
+        }
+
+        void fail(Throwable e) {
+            if (failure == null) failure = e;
+        }
+
+        boolean isFailed() {
+            return failure != null;
+        }
+
+        Throwable getFailure() {
+            return failure;
+        }
+    }
+
+    static class Batch {
+        final long sequence;
+        final List<List<Object>> rows;
+
+        Batch(long sequence, List<List<Object>> rows) {
+            this.sequence = sequence;
+            this.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list view of a long[], so that large id lists can be passed as cypher parameters (which must be
+ * iterable) while the command selectors read the primitive values without boxing. The values are boxed on access.
+ *
+ * @author mh
+ * @since 28.04.12
+ */
+public class PrimitiveLongList extends AbstractList<Long> implements RandomAccess {
+    private final long[] values;
+
+    public PrimitiveLongList(long[] values) {
+        this.values = values;
+    }
+
+    @Override
+    public Long get(int index) {
+        return values[index];
+    }
+
+    public long getLong(int index) {
+        return values[index];
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+}
@@ -31,4 +31,9 @@ public class PrintingResultCallback extends CypherResultReader.ResultCallback {
     public void count(int count) {
         System.out.println(count+" Rows");
     }
+
+    @Override
+    public void error(String message, String exception) {
+        System.out.println(exception+": "+message);
+    }
 }
@@ -0,0 +1,13 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+/**
+ * Thrown when parsing or executing a query fails before any of its result was written.
+ *
+ * @author mh
+ * @since 26.04.12
+ */
+public class QueryExecutionException extends RuntimeException {
+    public QueryExecutionException(String query, Throwable cause) {
+        super("Error executing " + query + ": " + cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,17 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+/**
+ * Thrown when a query or the streaming of its result exceeds the deadline of the request.
+ *
+ * @author mh
+ * @since 24.04.12
+ */
+public class QueryTimeoutException extends RuntimeException {
+    public QueryTimeoutException(long timeoutMillis) {
+        super("Query exceeded its timeout of " + timeoutMillis + " ms");
+    }
+
+    public QueryTimeoutException(long timeoutMillis, Throwable cause) {
+        super("Query exceeded its timeout of " + timeoutMillis + " ms", cause);
+    }
+}
@@ -0,0 +1,119 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses request bodies and websocket messages token by token into maps and lists, without materializing the input
+ * as String first. Arrays of at least {@link #DEFAULT_MIN_PRIMITIVE_ARRAY} integers (e.g. id lists for bulk queries)
+ * are decoded into a {@link PrimitiveLongList} backed by a long[] instead of lists of boxed numbers, shorter integer
+ * arrays into lists of Long, so cypher parameters don't depend on the length of the array. Mixed arrays keep the
+ * number types of single values (Integer if it fits, otherwise Long).
+ * Thread-safe, parsers are created per call from the shared factory.
+ *
+ * @author mh
+ * @since 28.04.12
+ */
+public class RequestParser {
+    public static final int DEFAULT_MIN_PRIMITIVE_ARRAY = 16;
+    private static final int INITIAL_ARRAY_SIZE = 16;
+
+    private final JsonFactory jsonFactory;
+    private final int minPrimitiveArray;
+
+    public RequestParser(JsonFactory jsonFactory) {
+        this(jsonFactory, DEFAULT_MIN_PRIMITIVE_ARRAY);
+    }
+
+    public RequestParser(JsonFactory jsonFactory, int minPrimitiveArray) {
+        this.jsonFactory = jsonFactory;
+        this.minPrimitiveArray = minPrimitiveArray;
+    }
+
+    public Object parse(InputStream input) throws IOException {
+        return parse(jsonFactory.createJsonParser(input));
+    }
+
+    public Object parse(String text) throws IOException {
+        return parse(jsonFactory.createJsonParser(text));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the input is not a JSON object
+     */
+    public Map<String, Object> parseMap(InputStream input) throws IOException {
+        final Object value = parse(input);
+        if (value instanceof Map) return (Map<String, Object>) value;
+        throw new IllegalArgumentException("Invalid input, expected a JSON object");
+    }
+
+    private Object parse(JsonParser jp) throws IOException {
+        try {
+            final JsonToken token = jp.nextToken();
+            if (token == null) throw new IllegalArgumentException("Invalid input, no content");
+            return readValue(jp, token);
+        } finally {
+            jp.close();
+        }
+    }
+
+    private Object readValue(JsonParser jp, JsonToken token) throws IOException {
+        if (token == null) throw new JsonParseException("Unexpected end of input", jp.getCurrentLocation());
+        if (token == JsonToken.START_OBJECT) return readObject(jp);
+        if (token == JsonToken.START_ARRAY) return readArray(jp);
+        if (token == JsonToken.VALUE_STRING) return jp.getText();
+        if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) return jp.getNumberValue();
+        if (token == JsonToken.VALUE_TRUE) return Boolean.TRUE;
+        if (token == JsonToken.VALUE_FALSE) return Boolean.FALSE;
+        if (token == JsonToken.VALUE_NULL) return null;
+        if (token == JsonToken.VALUE_EMBEDDED_OBJECT) return jp.getEmbeddedObject();
+        throw new JsonParseException("Unexpected token " + token, jp.getCurrentLocation());
+    }
+
+    private Map<String, Object> readObject(JsonParser jp) throws IOException {
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = jp.getCurrentName();
+            map.put(field, readValue(jp, jp.nextToken()));
+        }
+        return map;
+    }
+
+    /**
+     * collects leading integers in a long[] and switches to a list of boxed values at the first other value,
+     * integer-only arrays have Long elements whatever their length
+     */
+    private Object readArray(JsonParser jp) throws IOException {
+        long[] longs = new long[INITIAL_ARRAY_SIZE];
+        int size = 0;
+        JsonToken token;
+        while ((token = jp.nextToken()) == JsonToken.VALUE_NUMBER_INT && jp.getNumberType() != JsonParser.NumberType.BIG_INTEGER) {
+            if (size == longs.length) longs = Arrays.copyOf(longs, size * 2);
+            longs[size++] = jp.getLongValue();
+        }
+        if (token == JsonToken.END_ARRAY && size >= minPrimitiveArray) {
+            return new PrimitiveLongList(size == longs.length ? longs : Arrays.copyOf(longs, size));
+        }
+        final List<Object> list = new ArrayList<Object>(Math.max(size, 10));
+        final boolean integers = token == JsonToken.END_ARRAY;
+        for (int i = 0; i < size; i++) {
+            final long value = longs[i];
+            list.add(integers || value != (int) value ? (Object) value : (Object) (int) value);
+        }
+        while (token != JsonToken.END_ARRAY) {
+            list.add(readValue(jp, token));
+            token = jp.nextToken();
+        }
+        return list;
+    }
+}
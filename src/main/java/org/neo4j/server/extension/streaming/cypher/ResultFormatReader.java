@@ -0,0 +1,170 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the output of any of the result writers through the same callback and iterator interface. The format is taken
+ * from the content type if given, otherwise detected from the content: gzip or deflate compressed streams are
+ * decompressed, the Smile header selects the binary reader, JSON (default, compact, compat, ndjson, count only, pretty
+ * printed) starts with '{', an array of results (batch endpoint, websocket commands) with '[', anything else is read as
+ * CSV or TSV depending on a tab in the header line. Arrays of results are only read by the callback API.
+ *
+ * @author mh
+ * @since 01.05.12
+ */
+public class ResultFormatReader {
+    private static final int DETECT_BYTES = 4096;
+    private static final int ZLIB_PROBE_BYTES = 512;
+
+    public enum Format {JSON, SMILE, CSV, TSV}
+
+    private final CypherResultReader jsonReader;
+    private final CypherResultReader binaryReader;
+    private final Set<String> selectedColumns;
+
+    public ResultFormatReader() {
+        this(new CypherResultReader(), CypherResultReader.binary(), null);
+    }
+
+    private ResultFormatReader(CypherResultReader jsonReader, CypherResultReader binaryReader, Set<String> selectedColumns) {
+        this.jsonReader = jsonReader;
+        this.binaryReader = binaryReader;
+        this.selectedColumns = selectedColumns;
+    }
+
+    /**
+     * @see CypherResultReader#selectColumns
+     */
+    public ResultFormatReader selectColumns(String... columns) {
+        return new ResultFormatReader(jsonReader.selectColumns(columns), binaryReader.selectColumns(columns), new HashSet<String>(Arrays.asList(columns)));
+    }
+
+    /**
+     * @param contentType of the response, null to detect the format from the content
+     */
+    public void readCypherResults(InputStream inputStream, String contentType, CypherResultReader.ResultCallback callback) throws IOException {
+        final BufferedInputStream input = decompress(buffered(inputStream), contentType);
+        final Format format = detect(input, contentType);
+        if (format == Format.JSON || format == Format.SMILE) {
+            (format == Format.SMILE ? binaryReader : jsonReader).readCypherResults(input, callback);
+            return;
+        }
+        final CypherResultReader.ResultIterator rows = iterate(input, format);
+        callback.columns(rows.getColumns());
+        int row = 0;
+        while (rows.hasNext()) {
+            final List<Object> cells = rows.next();
+            callback.row(row++);
+            for (int column = 0; column < cells.size(); column++) {
+                final String type = rows.getType(column);
+                if (type != null) callback.cell(column, type, cells.get(column));
+            }
+        }
+        if (rows.getCount() != null) callback.count(rows.getCount());
+        if (rows.getTime() != null) callback.time(rows.getTime());
+    }
+
+    /**
+     * @param contentType of the response, null to detect the format from the content
+     * @throws org.codehaus.jackson.JsonParseException for an array of results
+     */
+    public CypherResultReader.ResultIterator iterate(InputStream inputStream, String contentType) throws IOException {
+        final BufferedInputStream input = decompress(buffered(inputStream), contentType);
+        return iterate(input, detect(input, contentType));
+    }
+
+    private CypherResultReader.ResultIterator iterate(InputStream input, Format format) throws IOException {
+        switch (format) {
+            case SMILE:
+                return binaryReader.iterate(input);
+            case CSV:
+                return new DelimitedResultIterator(input, true, selectedColumns);
+            case TSV:
+                return new DelimitedResultIterator(input, false, selectedColumns);
+            default:
+                return jsonReader.iterate(input);
+        }
+    }
+
+    private static BufferedInputStream buffered(InputStream input) {
+        return input instanceof BufferedInputStream ? (BufferedInputStream) input : new BufferedInputStream(input);
+    }
+
+    /**
+     * unwraps gzip (1f 8b) and zlib deflate (78 xx) streams, e.g. if the client doesn't handle the content encoding.
+     * The zlib header is also valid text (e.g. "x^"), so it is only sniffed without content type and if the peeked
+     * bytes inflate.
+     */
+    private static BufferedInputStream decompress(BufferedInputStream input, String contentType) throws IOException {
+        final byte[] head = peek(input, contentType == null ? ZLIB_PROBE_BYTES : 2);
+        if (head.length < 2) return input;
+        final int first = head[0] & 0xFF;
+        final int second = head[1] & 0xFF;
+        if (first == 0x1F && second == 0x8B) return new BufferedInputStream(new GZIPInputStream(input));
+        if (contentType == null && isZlib(head)) return new BufferedInputStream(new InflaterInputStream(input));
+        return input;
+    }
+
+    /**
+     * deflate with 32k window (CMF 0x78), valid header check, no preset dictionary and the data inflates
+     */
+    private static boolean isZlib(byte[] head) {
+        final int cmf = head[0] & 0xFF;
+        final int flg = head[1] & 0xFF;
+        if (cmf != 0x78 || (cmf * 256 + flg) % 31 != 0 || (flg & 0x20) != 0) return false;
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(head);
+            final int inflated = inflater.inflate(new byte[DETECT_BYTES]);
+            return inflated > 0 || inflater.finished();
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public static Format detect(BufferedInputStream input, String contentType) throws IOException {
+        if (contentType != null) {
+            if (contentType.contains("smile")) return Format.SMILE;
+            if (contentType.contains("csv")) return Format.CSV;
+            if (contentType.contains("tab-separated")) return Format.TSV;
+            if (contentType.contains("json")) return Format.JSON;
+        }
+        final byte[] head = peek(input, DETECT_BYTES);
+        if (head.length >= 3 && head[0] == ':' && head[1] == ')' && head[2] == '\n') return Format.SMILE;
+        for (byte b : head) {
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n') continue;
+            if (b == '{' || b == '[') return Format.JSON;
+            break;
+        }
+        for (byte b : head) {
+            if (b == '\t') return Format.TSV;
+            if (b == '\n') break;
+        }
+        return Format.CSV;
+    }
+
+    private static byte[] peek(BufferedInputStream input, int length) throws IOException {
+        input.mark(length);
+        final byte[] buffer = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int count = input.read(buffer, read, length - read);
+            if (count == -1) break;
+            read += count;
+        }
+        input.reset();
+        return read == length ? buffer : Arrays.copyOf(buffer, read);
+    }
+}
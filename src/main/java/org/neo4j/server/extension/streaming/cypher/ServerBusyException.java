@@ -0,0 +1,13 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+/**
+ * Thrown by the {@link AdmissionController} when a request is rejected because too many are running or waiting.
+ *
+ * @author mh
+ * @since 25.04.12
+ */
+public class ServerBusyException extends RuntimeException {
+    public ServerBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,13 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+/**
+ * Thrown by the {@link CursorRegistry} when a cursor can't be opened because the maximum number of cursors is open.
+ *
+ * @author mh
+ * @since 23.04.12
+ */
+public class TooManyCursorsException extends RuntimeException {
+    public TooManyCursorsException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,389 @@
+package org.neo4j.server.extension.streaming.cypher;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Token level decoder for streamed cypher results (default and compact format) that doesn't build maps per cell like
+ * {@link CypherResultReader}. Numbers, booleans and strings are passed to primitive callbacks, nodes, relationships
+ * and paths are decoded into flyweights that are reused for every cell, so callbacks must copy what they want to keep.
+ * Deduplicated entities are passed as references (only the id is set), other values (arrays, custom types) are
+ * decoded generically.
+ *
+ * @author mh
+ * @since 29.04.12
+ */
+public class TypedResultReader {
+    private final JsonFactory jsonFactory;
+
+    public TypedResultReader() {
+        this(new JsonFactory(new ObjectMapper()));
+    }
+
+    public TypedResultReader(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * @return a reader for the binary Smile encoding (application/x-jackson-smile)
+     */
+    public static TypedResultReader binary() {
+        return new TypedResultReader(new SmileFactory(new ObjectMapper()));
+    }
+
+    public static class TypedCallback {
+        public void columns(List<String> columns) {
+        }
+
+        public void row(int row) {
+        }
+
+        public void cell(int column, long value) {
+        }
+
+        public void cell(int column, double value) {
+        }
+
+        public void cell(int column, boolean value) {
+        }
+
+        public void cell(int column, String value) {
+        }
+
+        public void nullCell(int column) {
+        }
+
+        public void node(int column, NodeData node) {
+        }
+
+        public void relationship(int column, RelationshipData relationship) {
+        }
+
+        public void path(int column, PathData path) {
+        }
+
+        /**
+         * arrays and values of custom types, decoded into lists and maps
+         */
+        public void value(int column, String type, Object value) {
+        }
+
+        public void time(int time) {
+        }
+
+        public void count(int count) {
+        }
+    }
+
+    /**
+     * id and properties of a node or relationship, valid only during the callback
+     */
+    public static class EntityData {
+        private long id;
+        private boolean reference;
+        private String[] keys = new String[8];
+        private Object[] values = new Object[8];
+        private int size;
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * true for the {"node":id} references of deduplicated results, the properties were sent with the first occurrence
+         */
+        public boolean isReference() {
+            return reference;
+        }
+
+        public int getPropertyCount() {
+            return size;
+        }
+
+        public String getKey(int index) {
+            return keys[index];
+        }
+
+        public Object getValue(int index) {
+            return values[index];
+        }
+
+        public Object getProperty(String key) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key)) return values[i];
+            }
+            return null;
+        }
+
+        void reset() {
+            id = -1;
+            reference = false;
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+        }
+
+        void addProperty(String key, Object value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size++] = value;
+        }
+    }
+
+    public static class NodeData extends EntityData {
+    }
+
+    public static class RelationshipData extends EntityData {
+        private long start;
+        private long end;
+        private String type;
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            start = -1;
+            end = -1;
+            type = null;
+        }
+    }
+
+    public static class PathData {
+        private int length;
+        private final NodeData start = new NodeData();
+        private final NodeData end = new NodeData();
+        private final RelationshipData lastRelationship = new RelationshipData();
+        private final List<NodeData> nodes = new ArrayList<NodeData>();
+        private final List<RelationshipData> relationships = new ArrayList<RelationshipData>();
+        private int nodeCount;
+        private int relationshipCount;
+
+        public int getLength() {
+            return length;
+        }
+
+        public NodeData getStart() {
+            return start;
+        }
+
+        public NodeData getEnd() {
+            return end;
+        }
+
+        public RelationshipData getLastRelationship() {
+            return lastRelationship;
+        }
+
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        public NodeData getNode(int index) {
+            return nodes.get(index);
+        }
+
+        public int getRelationshipCount() {
+            return relationshipCount;
+        }
+
+        public RelationshipData getRelationship(int index) {
+            return relationships.get(index);
+        }
+
+        NodeData nextNode() {
+            if (nodeCount == nodes.size()) nodes.add(new NodeData());
+            return nodes.get(nodeCount++);
+        }
+
+        RelationshipData nextRelationship() {
+            if (relationshipCount == relationships.size()) relationships.add(new RelationshipData());
+            return relationships.get(relationshipCount++);
+        }
+
+        void reset() {
+            length = 0;
+            nodeCount = 0;
+            relationshipCount = 0;
+        }
+    }
+
+    private static final class Flyweights {
+        final NodeData node = new NodeData();
+        final RelationshipData relationship = new RelationshipData();
+        final PathData path = new PathData();
+    }
+
+    public void readCypherResults(InputStream inputStream, TypedCallback callback) throws IOException {
+        final JsonParser jp = jsonFactory.createJsonParser(inputStream);
+        final Flyweights flyweights = new Flyweights();
+        try {
+            if (jp.nextToken() != JsonToken.START_OBJECT) throw new JsonParseException("Expected a result object", jp.getCurrentLocation());
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = jp.getCurrentName();
+                final JsonToken token = jp.nextToken();
+                if (field.equals("columns")) {
+                    callback.columns(readStrings(jp));
+                } else if (field.equals("rows") && token == JsonToken.START_ARRAY) {
+                    readRows(jp, callback, flyweights);
+                } else if (field.equals("time") && token == JsonToken.VALUE_NUMBER_INT) {
+                    callback.time(jp.getIntValue());
+                } else if (field.equals("count") && token == JsonToken.VALUE_NUMBER_INT) {
+                    callback.count(jp.getIntValue());
+                } else {
+                    jp.skipChildren();
+                }
+            }
+        } finally {
+            jp.close();
+        }
+    }
+
+    private void readRows(JsonParser jp, TypedCallback callback, Flyweights flyweights) throws IOException {
+        int row = 0;
+        String[] types = null;
+        while (jp.nextToken() != JsonToken.END_ARRAY) {
+            if (jp.getCurrentToken() == JsonToken.START_OBJECT) { // compact mode column types
+                jp.nextToken(); // "types"
+                jp.nextToken();
+                types = readStrings(jp).toArray(new String[0]);
+                jp.nextToken(); // end of types object
+                continue;
+            }
+            callback.row(row++);
+            int column = 0;
+            while (jp.nextToken() != JsonToken.END_ARRAY) {
+                if (types == null) { // {"Type" : value}
+                    jp.nextToken();
+                    final String type = jp.getCurrentName();
+                    readCell(jp, jp.nextToken(), column, type, callback, flyweights);
+                    jp.nextToken(); // end of cell object
+                } else {
+                    readCell(jp, jp.getCurrentToken(), column, types[column], callback, flyweights);
+                }
+                column++;
+            }
+        }
+    }
+
+    private void readCell(JsonParser jp, JsonToken token, int column, String type, TypedCallback callback, Flyweights flyweights) throws IOException {
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            callback.cell(column, jp.getLongValue());
+        } else if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+            callback.cell(column, jp.getDoubleValue());
+        } else if (token == JsonToken.VALUE_STRING) {
+            callback.cell(column, jp.getText());
+        } else if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+            callback.cell(column, token == JsonToken.VALUE_TRUE);
+        } else if (token == JsonToken.VALUE_NULL) {
+            callback.nullCell(column);
+        } else if (token == JsonToken.START_OBJECT && type.equals("Node")) {
+            readEntity(jp, flyweights.node);
+            callback.node(column, flyweights.node);
+        } else if (token == JsonToken.START_OBJECT && type.equals("Relationship")) {
+            readEntity(jp, flyweights.relationship);
+            callback.relationship(column, flyweights.relationship);
+        } else if (token == JsonToken.START_OBJECT && type.equals("Path")) {
+            readPath(jp, flyweights.path);
+            callback.path(column, flyweights.path);
+        } else {
+            callback.value(column, type, jp.readValueAs(Object.class));
+        }
+    }
+
+    /**
+     * reads {id, [start, end, type], data : {}} or the references {"node":id}, {"relationship":id}
+     */
+    private void readEntity(JsonParser jp, EntityData entity) throws IOException {
+        entity.reset();
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = jp.getCurrentName();
+            final JsonToken token = jp.nextToken();
+            if (field.equals("id")) {
+                entity.id = jp.getLongValue();
+            } else if (field.equals("data") && token == JsonToken.START_OBJECT) {
+                while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                    final String key = jp.getCurrentName();
+                    entity.addProperty(key, readProperty(jp, jp.nextToken()));
+                }
+            } else if (field.equals("node") || field.equals("relationship")) {
+                entity.id = jp.getLongValue();
+                entity.reference = true;
+            } else if (entity instanceof RelationshipData && field.equals("start")) {
+                ((RelationshipData) entity).start = jp.getLongValue();
+            } else if (entity instanceof RelationshipData && field.equals("end")) {
+                ((RelationshipData) entity).end = jp.getLongValue();
+            } else if (entity instanceof RelationshipData && field.equals("type")) {
+                ((RelationshipData) entity).type = jp.getText();
+            } else {
+                jp.skipChildren();
+            }
+        }
+    }
+
+    private Object readProperty(JsonParser jp, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) return jp.getNumberValue();
+        if (token == JsonToken.VALUE_STRING) return jp.getText();
+        if (token == JsonToken.VALUE_TRUE) return Boolean.TRUE;
+        if (token == JsonToken.VALUE_FALSE) return Boolean.FALSE;
+        if (token == JsonToken.VALUE_NULL) return null;
+        return jp.readValueAs(Object.class); // arrays
+    }
+
+    private void readPath(JsonParser jp, PathData path) throws IOException {
+        path.reset();
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = jp.getCurrentName();
+            final JsonToken token = jp.nextToken();
+            if (field.equals("length")) {
+                path.length = jp.getIntValue();
+            } else if (field.equals("start") && token == JsonToken.START_OBJECT) {
+                readEntity(jp, path.start);
+            } else if (field.equals("end") && token == JsonToken.START_OBJECT) {
+                readEntity(jp, path.end);
+            } else if (field.equals("last_rel") && token == JsonToken.START_OBJECT) {
+                readEntity(jp, path.lastRelationship);
+            } else if (field.equals("nodes") && token == JsonToken.START_ARRAY) {
+                while (jp.nextToken() == JsonToken.START_OBJECT) {
+                    readEntity(jp, path.nextNode());
+                }
+            } else if (field.equals("relationships") && token == JsonToken.START_ARRAY) {
+                while (jp.nextToken() == JsonToken.START_OBJECT) {
+                    readEntity(jp, path.nextRelationship());
+                }
+            } else {
+                jp.skipChildren();
+            }
+        }
+    }
+
+    private List<String> readStrings(JsonParser jp) throws IOException {
+        final List<String> strings = new ArrayList<String>();
+        while (jp.nextToken() == JsonToken.VALUE_STRING) {
+            strings.add(jp.getText());
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,113 @@
+package org.neo4j.server.extension.streaming.cypher.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streaming gzip/deflate compression of the response. The streams sync-flush whenever the writer flushes
+ * (see {@link FlushPolicy}), so the client receives rows incrementally without the whole response being buffered.
+ *
+ * @author mh
+ * @since 21.04.12
+ */
+public class Compression {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    private static final int BUFFER_SIZE = 8192;
+    private static final int SYNC_FLUSH = 2; // Deflater.SYNC_FLUSH since Java 7
+    private static final Method DEFLATE_WITH_FLUSH = deflateWithFlush();
+
+    /**
+     * @return the supported encoding from the Accept-Encoding header, or null for an uncompressed response
+     */
+    public static String select(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        final String encodings = acceptEncoding.toLowerCase();
+        if (encodings.contains(GZIP)) return GZIP;
+        if (encodings.contains(DEFLATE)) return DEFLATE;
+        return null;
+    }
+
+    public static OutputStream compress(OutputStream output, String encoding, final int level) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(output, BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    syncFlush(def, buf, out, level);
+                }
+            };
+        }
+        if (DEFLATE.equals(encoding)) {
+            return new DeflaterOutputStream(output, new Deflater(level), BUFFER_SIZE) {
+                @Override
+                public void flush() throws IOException {
+                    syncFlush(def, buf, out, level);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    def.end();
+                }
+            };
+        }
+        return output;
+    }
+
+    /**
+     * Sync flush via Deflater.deflate(byte[],int,int,int) where available (Java 7+), the project still builds for
+     * Java 6. There changing the level is the closest approximation, zlib then emits what was compressed so far except
+     * for a few pending bits.
+     */
+    private static void syncFlush(Deflater def, byte[] buf, OutputStream out, int level) throws IOException {
+        if (!def.finished()) {
+            if (DEFLATE_WITH_FLUSH != null) {
+                int len;
+                while ((len = deflate(def, buf)) > 0) {
+                    out.write(buf, 0, len);
+                    if (len < buf.length) break;
+                }
+            } else {
+                def.setLevel(Deflater.NO_COMPRESSION);
+                drain(def, buf, out);
+                def.setLevel(level);
+                drain(def, buf, out);
+            }
+        }
+        out.flush();
+    }
+
+    private static int deflate(Deflater def, byte[] buf) throws IOException {
+        try {
+            return (Integer) DEFLATE_WITH_FLUSH.invoke(def, buf, 0, buf.length, SYNC_FLUSH);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Error flushing compressed stream: " + e.getCause().getMessage(), e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException("Error flushing compressed stream: " + e.getMessage(), e);
+        }
+    }
+
+    private static Method deflateWithFlush() {
+        try {
+            return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static void drain(Deflater def, byte[] buf, OutputStream out) throws IOException {
+        int len;
+        while ((len = def.deflate(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, len);
+        }
+    }
+}
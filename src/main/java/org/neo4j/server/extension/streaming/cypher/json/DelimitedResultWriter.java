@@ -0,0 +1,301 @@
+package org.neo4j.server.extension.streaming.cypher.json;
+
+import org.neo4j.cypher.javacompat.ExecutionResult;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes results as CSV (RFC 4180 quoting) or TSV (backslash escapes), one line per row after a header line with the columns.
+ * Nodes and relationships are flattened to their id, with a projection to one cell per projected property
+ * (header "column.property"), the layout of the columns is taken from the first row. Arrays and paths are rendered as
+ * [a,b,c], entities inside of them as ids. In CSV empty strings are quoted, an empty cell is null (TSV can't tell them
+ * apart). Errors are written as a line "#error, exception, message" starting with an unquoted '#', cells starting with
+ * '#' are quoted (CSV) or escaped as "\#" (TSV), so readers can tell error lines from rows.
+ *
+ * @author mh
+ * @since 22.04.12
+ */
+class DelimitedResultWriter implements JsonResultWriter {
+    private final Writer writer;
+    private final MeteredOutputStream metered;
+    private final FlushStatistics flushStatistics;
+    private final long probeMillis;
+    private final char separator;
+    private final String lineEnd;
+    private final boolean csv;
+    private Projection projection = Projection.ALL;
+    private FlushPolicy flushPolicy = FlushPolicy.NEVER;
+    private int rows;
+    private int rowsSinceFlush;
+    private long bytesAtFlush;
+    private long lastFlushTime = System.currentTimeMillis();
+
+    private DelimitedResultWriter(OutputStream output, FlushStatistics flushStatistics, long probeMillis, boolean csv) {
+        this.metered = new MeteredOutputStream(output);
+        this.writer = new BufferedWriter(new OutputStreamWriter(metered, JsonResultWriters.UTF8));
+        this.flushStatistics = flushStatistics;
+        this.probeMillis = probeMillis;
+        this.csv = csv;
+        this.separator = csv ? ',' : '\t';
+        this.lineEnd = csv ? "\r\n" : "\n";
+    }
+
+    static DelimitedResultWriter csv(OutputStream output, FlushStatistics flushStatistics, long probeMillis) {
+        return new DelimitedResultWriter(output, flushStatistics, probeMillis, true);
+    }
+
+    static DelimitedResultWriter tsv(OutputStream output, FlushStatistics flushStatistics, long probeMillis) {
+        return new DelimitedResultWriter(output, flushStatistics, probeMillis, false);
+    }
+
+    public void writeResult(ExecutionResult result, long start) throws IOException {
+        writeRows(result.columns(), result.iterator(), -1);
+    }
+
+    public void writeResult(List<String> columns, Iterator<Map<String, Object>> rows, long start) throws IOException {
+        writeRows(columns, rows, -1);
+    }
+
+    /**
+     * a page is written like a complete result, the client knows from the row count whether to fetch more
+     */
+    public int writePage(long cursor, List<String> columns, Iterator<Map<String, Object>> rows, int limit, long start) throws IOException {
+        return writeRows(columns, rows, limit);
+    }
+
+    private int writeRows(List<String> columns, Iterator<Map<String, Object>> rows, int limit) throws IOException {
+        String[][] layout = null;
+        int count = 0;
+        while (count != limit && rows.hasNext()) {
+            final Map<String, Object> row = rows.next();
+            count++;
+            if (layout == null) {
+                layout = layout(row, columns);
+                writeHeader(columns, layout);
+            }
+            int i = 0;
+            for (String column : columns) {
+                if (i > 0) writer.write(separator);
+                writeCell(row.get(column), layout[i++]);
+            }
+            writer.write(lineEnd);
+            afterRow();
+        }
+        if (layout == null) writeHeader(columns, new String[columns.size()][]);
+        return count;
+    }
+
+    /**
+     * the projected property keys per column if the first value is a node or relationship, otherwise null
+     */
+    private String[][] layout(Map<String, Object> row, List<String> columns) {
+        final String[][] layout = new String[columns.size()][];
+        int i = 0;
+        for (String column : columns) {
+            final Object value = row.get(column);
+            final String[] keys = value instanceof Node ? projection.getNodeKeys() :
+                    value instanceof Relationship ? projection.getRelationshipKeys() : null;
+            layout[i++] = keys == null || keys.length == 0 ? null : keys;
+        }
+        return layout;
+    }
+
+    private void writeHeader(List<String> columns, String[][] layout) throws IOException {
+        int i = 0;
+        for (String column : columns) {
+            final String[] keys = layout[i];
+            if (keys == null) {
+                if (i > 0) writer.write(separator);
+                writeText(column);
+            } else {
+                for (int k = 0; k < keys.length; k++) {
+                    if (i > 0 || k > 0) writer.write(separator);
+                    writeText(column + "." + keys[k]);
+                }
+            }
+            i++;
+        }
+        writer.write(lineEnd);
+    }
+
+    private void writeCell(Object value, String[] keys) throws IOException {
+        if (keys == null) {
+            writeValue(value);
+            return;
+        }
+        for (int k = 0; k < keys.length; k++) {
+            if (k > 0) writer.write(separator);
+            if (value instanceof PropertyContainer) writeValue(((PropertyContainer) value).getProperty(keys[k], null));
+            else if (k == 0) writeValue(value);
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) return;
+        if (value instanceof String) {
+            writeText((String) value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writer.write(value.toString());
+        } else if (value instanceof Node) {
+            writer.write(String.valueOf(((Node) value).getId()));
+        } else if (value instanceof Relationship) {
+            writer.write(String.valueOf(((Relationship) value).getId()));
+        } else {
+            writeText(toText(value));
+        }
+    }
+
+    private String toText(Object value) {
+        if (value instanceof Node) return String.valueOf(((Node) value).getId());
+        if (value instanceof Relationship) return String.valueOf(((Relationship) value).getId());
+        if (value instanceof Path || value instanceof Iterable) {
+            final StringBuilder sb = new StringBuilder("[");
+            for (Object element : (Iterable) value) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append(toText(element));
+            }
+            return sb.append(']').toString();
+        }
+        if (value instanceof char[]) return new String((char[]) value);
+        if (value != null && value.getClass().isArray()) {
+            final StringBuilder sb = new StringBuilder("[");
+            for (int i = 0, length = Array.getLength(value); i < length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(toText(Array.get(value, i)));
+            }
+            return sb.append(']').toString();
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * CSV: quoted if the text is empty, starts with '#' or contains the separator, a quote or a line break, quotes are doubled.
+     * TSV: tab, line breaks, backslash and a leading '#' are escaped with a backslash.
+     */
+    private void writeText(String text) throws IOException {
+        final int length = text.length();
+        if (csv) {
+            if (!needsQuotes(text)) {
+                writer.write(text);
+                return;
+            }
+            writer.write('"');
+            for (int i = 0; i < length; i++) {
+                final char c = text.charAt(i);
+                if (c == '"') writer.write('"');
+                writer.write(c);
+            }
+            writer.write('"');
+            return;
+        }
+        if (length > 0 && text.charAt(0) == '#') writer.write('\\');
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '\t': writer.write("\\t"); break;
+                case '\n': writer.write("\\n"); break;
+                case '\r': writer.write("\\r"); break;
+                case '\\': writer.write("\\\\"); break;
+                default: writer.write(c);
+            }
+        }
+    }
+
+    private boolean needsQuotes(String text) {
+        if (text.length() == 0 || text.charAt(0) == '#') return true;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            final char c = text.charAt(i);
+            if (c == separator || c == '"' || c == '\n' || c == '\r') return true;
+        }
+        return false;
+    }
+
+    private void afterRow() throws IOException {
+        rows++;
+        rowsSinceFlush++;
+        if (flushPolicy.shouldFlush(rows, rowsSinceFlush, metered.getCount() - bytesAtFlush, lastFlushTime)
+                || probeMillis > 0 && System.currentTimeMillis() - lastFlushTime >= probeMillis) {
+            writer.flush();
+            flushed();
+        }
+    }
+
+    private void flushed() {
+        final long bytes = metered.getCount();
+        flushStatistics.flushed(rowsSinceFlush, bytes - bytesAtFlush);
+        rowsSinceFlush = 0;
+        bytesAtFlush = bytes;
+        lastFlushTime = System.currentTimeMillis();
+    }
+
+    public void writeError(Throwable error, long start) throws IOException {
+        writer.write("#error");
+        writer.write(separator);
+        writeText(error.getClass().getSimpleName());
+        writer.write(separator);
+        writeText(String.valueOf(error.getMessage()));
+        writer.write(lineEnd);
+    }
+
+    public JsonResultWriter usePrettyPrinter() {
+        return this;
+    }
+
+    public JsonResultWriter useEntityReferences() {
+        return this;
+    }
+
+    public JsonResultWriter useEntityCache(int maxEntries) {
+        return this;
+    }
+
+    public JsonResultWriter useProjection(Projection projection) {
+        this.projection = projection == null ? Projection.ALL : projection;
+        return this;
+    }
+
+    public JsonResultWriter useFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy == null ? FlushPolicy.NEVER : flushPolicy;
+        return this;
+    }
+
+    public void startArray() throws IOException {
+    }
+
+    public void endArray() throws IOException {
+        writer.flush();
+    }
+
+    public void writeNode(Node node) throws IOException {
+        writeValue(node);
+        writer.write(lineEnd);
+    }
+
+    public void writeRelationship(Relationship relationship) throws IOException {
+        writeValue(relationship);
+        writer.write(lineEnd);
+    }
+
+    public void writePath(Path path) throws IOException {
+        writeValue(path);
+        writer.write(lineEnd);
+    }
+
+    public void close() throws IOException {
+        writer.flush();
+        if (rowsSinceFlush > 0) flushed();
+        writer.close();
+    }
+}
@@ -0,0 +1,53 @@
+package org.neo4j.server.extension.streaming.cypher.json;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of already encoded nodes and relationships of a single response, keyed by id.
+ *
+ * @author mh
+ * @since 19.04.12
+ */
+class EntityCache {
+    // bigger entities are cheap to re-encode compared to their size, don't keep them around
+    static final int MAX_ENCODED_LENGTH = 16 * 1024;
+
+    private final Map<Long, String> nodes;
+    private final Map<Long, String> relationships;
+
+    EntityCache(int maxEntries) {
+        nodes = lruMap(maxEntries);
+        relationships = lruMap(maxEntries);
+    }
+
+    private static Map<Long, String> lruMap(final int maxEntries) {
+        return new LinkedHashMap<Long, String>(Math.min(maxEntries, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    String getNode(long id) {
+        return nodes.get(id);
+    }
+
+    void putNode(long id, String encoded) {
+        if (encoded.length() <= MAX_ENCODED_LENGTH) nodes.put(id, encoded);
+    }
+
+    String getRelationship(long id) {
+        return relationships.get(id);
+    }
+
+    void putRelationship(long id, String encoded) {
+        if (encoded.length() <= MAX_ENCODED_LENGTH) relationships.put(id, encoded);
+    }
+
+    void clear() {
+        nodes.clear();
+        relationships.clear();
+    }
+}
@@ -0,0 +1,93 @@
+package org.neo4j.server.extension.streaming.cypher.json;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides when the writer flushes its output after a row: immediately after the first row (time to first row),
+ * every n rows or m bytes, or when the last flush is longer ago than a maximum latency. A value of 0 or less disables
+ * the criterion. Subclasses can override {@link #shouldFlush}.
+ *
+ * @author mh
+ * @since 21.04.12
+ */
+public class FlushPolicy {
+    public static final FlushPolicy NEVER = new FlushPolicy(false, 0, 0, 0);
+
+    private static final Pattern PARAMETER = Pattern.compile("flush_(first|rows|bytes|millis)=(true|false|\\d+)\\b");
+
+    private final boolean firstRow;
+    private final int rows;
+    private final long bytes;
+    private final long millis;
+
+    public FlushPolicy(int rows, long bytes, long millis) {
+        this(false, rows, bytes, millis);
+    }
+
+    public FlushPolicy(boolean firstRow, int rows, long bytes, long millis) {
+        this.firstRow = firstRow;
+        this.rows = rows;
+        this.bytes = bytes;
+        this.millis = millis;
+    }
+
+    /**
+     * reads flush_first=true, flush_rows=n, flush_bytes=n and flush_millis=n from the Accept header or websocket protocol,
+     * invalid values (not a non-negative number, out of range) are ignored like absent parameters
+     *
+     * @return the policy or null if none of the parameters is present
+     */
+    public static FlushPolicy parse(String parameters) {
+        if (parameters == null || !parameters.contains("flush_")) return null;
+        boolean firstRow = false;
+        int rows = 0;
+        long bytes = 0, millis = 0;
+        final Matcher matcher = PARAMETER.matcher(parameters);
+        while (matcher.find()) {
+            final String name = matcher.group(1);
+            final String value = matcher.group(2);
+            if (name.equals("first")) {
+                firstRow = Boolean.parseBoolean(value);
+                continue;
+            }
+            final long number = parseNumber(value);
+            if (number < 0) continue;
+            if (name.equals("rows")) {
+                if (number <= Integer.MAX_VALUE) rows = (int) number;
+            }
+            else if (name.equals("bytes")) bytes = number;
+            else millis = number;
+        }
+        return new FlushPolicy(firstRow, rows, bytes, millis);
+    }
+
+    /**
+     * @return the value or -1 if it is no number or out of range
+     */
+    private static long parseNumber(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param row             number of rows written so far, starting with 1
+     * @param rowsSinceFlush  rows written since the last flush
+     * @param bytesSinceFlush bytes passed to the stream since the last flush
+     * @param lastFlushTime   time of the last flush or the start of the writer
+     */
+    public boolean shouldFlush(int row, int rowsSinceFlush, long bytesSinceFlush, long lastFlushTime) {
+        if (firstRow && row == 1) return true;
+        if (rows > 0 && rowsSinceFlush >= rows) return true;
+        if (bytes > 0 && bytesSinceFlush >= bytes) return true;
+        return millis > 0 && System.currentTimeMillis() - lastFlushTime >= millis;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy{firstRow=" + firstRow + ", rows=" + rows + ", bytes=" + bytes + ", millis=" + millis + "}";
+    }
+}
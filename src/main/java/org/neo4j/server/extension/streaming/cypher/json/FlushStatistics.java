@@ -0,0 +1,38 @@
+package org.neo4j.server.extension.streaming.cypher.json;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rows and bytes written per policy flush, shared by all writers of a {@link JsonResultWriters}.
+ *
+ * @author mh
+ * @since 21.04.12
+ */
+public class FlushStatistics {
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    void flushed(int rows, long bytes) {
+        this.flushes.incrementAndGet();
+        this.rows.addAndGet(rows);
+        this.bytes.addAndGet(bytes);
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public Map<String, Object> stats() {
+        final long flushes = getFlushes();
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("flushes", flushes);
+        stats.put("rows", rows.get());
+        stats.put("bytes", bytes.get());
+        stats.put("rowsPerFlush", flushes == 0 ? 0 : rows.get() / flushes);
+        stats.put("bytesPerFlush", flushes == 0 ? 0 : bytes.get() / flushes);
+        return stats;
+    }
+}
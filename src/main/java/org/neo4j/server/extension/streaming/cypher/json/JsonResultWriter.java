@@ -7,6 +7,9 @@ import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
 * @author mh
@@ -15,8 +18,45 @@ import java.io.IOException;
 public interface JsonResultWriter {
     void writeResult(ExecutionResult result, long start) throws IOException;
 
+    /**
+     * writes a result that was (partially) consumed elsewhere, e.g. buffered by a parallel execution
+     */
+    void writeResult(List<String> columns, Iterator<Map<String, Object>> rows, long start) throws IOException;
+
+    /**
+     * writes up to limit rows of an open cursor with a "more" flag if rows are left
+     *
+     * @return the number of rows written
+     */
+    int writePage(long cursor, List<String> columns, Iterator<Map<String, Object>> rows, int limit, long start) throws IOException;
+
+    /**
+     * writes {"error":message,"exception":type,"time":ms} in place of a result that could not be produced
+     */
+    void writeError(Throwable error, long start) throws IOException;
+
     JsonResultWriter usePrettyPrinter();
 
+    /**
+     * serialize each node and relationship only the first time it appears, afterwards as {"node":id} or {"relationship":id}
+     */
+    JsonResultWriter useEntityReferences();
+
+    /**
+     * keep up to maxEntries already encoded nodes and relationships and copy them raw into the output when repeated
+     */
+    JsonResultWriter useEntityCache(int maxEntries);
+
+    /**
+     * render only the selected properties of nodes and relationships, null renders all properties
+     */
+    JsonResultWriter useProjection(Projection projection);
+
+    /**
+     * checked after each row, flushes the output (a sync flush for compressed streams) when the policy says so
+     */
+    JsonResultWriter useFlushPolicy(FlushPolicy flushPolicy);
+
     void startArray() throws IOException;
 
     void endArray() throws IOException;
@@ -2,7 +2,11 @@ package org.neo4j.server.extension.streaming.cypher.json;
 
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.ObjectCodec;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.smile.SmileGenerator;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
 import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
@@ -11,55 +15,177 @@ import org.neo4j.graphdb.Relationship;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
 
 /**
  * @author mh
  * @since 14.04.12
  */
 public class JsonResultWriters {
+    public static final String SMILE = "application/x-jackson-smile";
+    public static final String NDJSON = "application/x-ndjson";
+    public static final String CSV = "text/csv";
+    public static final String TSV = "text/tab-separated-values";
+    // per entity type, the "already seen" sets take at most 16 bytes per id
+    public static final int MAX_ENTITY_REFERENCES = 1000000;
+    public static final int DEFAULT_ENTITY_CACHE_SIZE = 10000;
+    public static final long DEFAULT_PROBE_MILLIS = 1000;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_LONG_DIGITS = 19;
+
     protected final JsonFactory jsonFactory;
+    private final JsonResultWriters binary;
+    private final ValueSerializers valueSerializers;
+    private int compressionLevel = Deflater.BEST_SPEED;
+    private FlushPolicy compressionFlushPolicy = new FlushPolicy(1000, 64 * 1024, 1000);
+    private long probeMillis = DEFAULT_PROBE_MILLIS;
+    private final FlushStatistics flushStatistics;
 
     public JsonResultWriters() {
-        this(new JsonFactory(new ObjectMapper()));
+        this(new ObjectMapper());
+    }
+
+    public JsonResultWriters(ObjectMapper objectMapper) {
+        this(new JsonFactory(objectMapper));
     }
 
     JsonResultWriters(final JsonFactory jsonFactory) {
+        this(jsonFactory, smileFactory(jsonFactory.getCodec()), new ValueSerializers(), new FlushStatistics());
+    }
+
+    private JsonResultWriters(final JsonFactory jsonFactory, final JsonFactory binaryFactory, final ValueSerializers valueSerializers,
+                              final FlushStatistics flushStatistics) {
         this.jsonFactory = jsonFactory;
         this.jsonFactory.enable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+        this.valueSerializers = valueSerializers;
+        this.flushStatistics = flushStatistics;
+        this.binary = binaryFactory == null ? this : new JsonResultWriters(binaryFactory, null, valueSerializers, flushStatistics);
     }
 
-    private static class NullJsonResultWriter implements JsonResultWriter {
-        public void writeResult(ExecutionResult result, long start) throws IOException { }
+    private static JsonFactory smileFactory(ObjectCodec codec) {
+        final SmileFactory smileFactory = new SmileFactory(codec);
+        smileFactory.configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+        return smileFactory;
+    }
 
-        public JsonResultWriter usePrettyPrinter() { return this; }
+    /**
+     * @return the same writers producing the binary Smile encoding of the json formats
+     */
+    public JsonResultWriters binary() {
+        return binary;
+    }
 
-        public void startArray() throws IOException { }
+    public boolean isBinary() {
+        return binary == this;
+    }
 
-        public void endArray() throws IOException { }
+    /**
+     * @param encoding gzip or deflate, see {@link Compression#select(String)}, null for no compression
+     * @return the output stream to pass to the writer, use {@link #getCompressionFlushPolicy()} for the writer
+     */
+    public OutputStream compress(OutputStream output, String encoding) throws IOException {
+        return Compression.compress(output, encoding, compressionLevel);
+    }
 
-        public void writeNode(Node node) throws IOException { }
+    public void setCompression(int level, FlushPolicy flushPolicy) {
+        this.compressionLevel = level;
+        this.compressionFlushPolicy = flushPolicy;
+        if (binary != this) binary.setCompression(level, flushPolicy);
+    }
 
-        public void writeRelationship(Relationship relationship) throws IOException { }
+    /**
+     * The writers flush at least every probeMillis while rows are written, independent of the flush policy, so a
+     * client that went away is noticed by the failing write within that time instead of when the buffer is full.
+     *
+     * @param probeMillis 0 disables the probe
+     */
+    public void setProbeMillis(long probeMillis) {
+        this.probeMillis = probeMillis;
+        if (binary != this) binary.setProbeMillis(probeMillis);
+    }
 
-        public void writePath(Path path) throws IOException { }
+    /**
+     * every flush of a compressed stream is a sync flush which costs compression ratio, so they should be limited
+     */
+    public FlushPolicy getCompressionFlushPolicy() {
+        return compressionFlushPolicy;
+    }
 
-        public void close() throws IOException { }
+    /**
+     * rows and bytes per flush of all writers (including the binary ones)
+     */
+    public FlushStatistics getFlushStatistics() {
+        return flushStatistics;
+    }
+
+    /**
+     * register serializers for custom value types here, they are shared with the binary writers
+     */
+    public ValueSerializers getValueSerializers() {
+        return valueSerializers;
     }
 
     class JsonWriter implements JsonResultWriter {
         protected OutputStream output;
-        protected final JsonGenerator g;
+        protected JsonGenerator g;
+        private final MeteredOutputStream metered;
+        private FlushPolicy flushPolicy = FlushPolicy.NEVER;
+        private int rows;
+        private int rowsSinceFlush;
+        private long bytesAtFlush;
+        private long lastFlushTime = System.currentTimeMillis();
+        private PrimitiveLongSet seenNodes;
+        private PrimitiveLongSet seenRelationships;
+        private boolean pretty;
+        private Projection projection = Projection.ALL;
+        private EntityCache entityCache;
+        private StringWriter cacheBuffer;
+        private JsonGenerator cacheGenerator;
+        private final Map<Class<?>, ValueSerializer> resolvedSerializers = new IdentityHashMap<Class<?>, ValueSerializer>();
+        private Class<?> lastType;
+        private ValueSerializer lastSerializer;
+
+        private final ValueSerializer nullSerializer = new ValueSerializer("Null") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeNull();
+            }
+        };
+        private final ValueSerializer pathSerializer = new ValueSerializer("Path") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                writePath((Path) value);
+            }
+        };
+        private final ValueSerializer nodeSerializer = new ValueSerializer("Node") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                writeNode((Node) value);
+            }
+        };
+        private final ValueSerializer relationshipSerializer = new ValueSerializer("Relationship") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                writeRelationship((Relationship) value);
+            }
+        };
+        private final ValueSerializer iterableSerializer = new ValueSerializer("Array") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                writeIterable((Iterable) value);
+            }
+        };
 
         JsonWriter(OutputStream output) throws IOException {
-            this.output = output;
+            this.metered = new MeteredOutputStream(output);
+            this.output = metered;
             g = jsonFactory.createJsonGenerator(this.output);
         }
 
         public void close() throws IOException {
             g.flush();
+            if (rowsSinceFlush > 0) flushed();
             g.close();
         }
 
@@ -77,19 +203,109 @@ public class JsonResultWriters {
         @Override
         public JsonResultWriter usePrettyPrinter() {
             g.useDefaultPrettyPrinter();
+            pretty = true;
+            return this;
+        }
+
+        /**
+         * raw copies of encoded entities are only byte-identical without indentation and for the text format
+         */
+        @Override
+        public JsonResultWriter useEntityCache(int maxEntries) {
+            if (isBinary()) return this;
+            entityCache = new EntityCache(maxEntries);
+            return this;
+        }
+
+        @Override
+        public JsonResultWriter useProjection(Projection projection) {
+            this.projection = projection == null ? Projection.ALL : projection;
+            if (entityCache != null) entityCache.clear();
+            return this;
+        }
+
+        @Override
+        public JsonResultWriter useFlushPolicy(FlushPolicy flushPolicy) {
+            this.flushPolicy = flushPolicy == null ? FlushPolicy.NEVER : flushPolicy;
+            return this;
+        }
+
+        protected void afterRow() throws IOException {
+            rows++;
+            rowsSinceFlush++;
+            if (flushPolicy.shouldFlush(rows, rowsSinceFlush, metered.getCount() - bytesAtFlush, lastFlushTime)
+                    || probeMillis > 0 && System.currentTimeMillis() - lastFlushTime >= probeMillis) {
+                g.flush();
+                flushed();
+            }
+        }
+
+        private void flushed() {
+            final long bytes = metered.getCount();
+            flushStatistics.flushed(rowsSinceFlush, bytes - bytesAtFlush);
+            rowsSinceFlush = 0;
+            bytesAtFlush = bytes;
+            lastFlushTime = System.currentTimeMillis();
+        }
+
+        protected boolean isDedup() {
+            return seenNodes != null;
+        }
+
+        /**
+         * bytes passed to the output stream so far
+         */
+        protected long getBytesWritten() throws IOException {
+            g.flush();
+            return metered.getCount();
+        }
+
+        private boolean useCache() {
+            return entityCache != null && !pretty;
+        }
+
+        @Override
+        public JsonResultWriter useEntityReferences() {
+            seenNodes = new PrimitiveLongSet(MAX_ENTITY_REFERENCES);
+            seenRelationships = new PrimitiveLongSet(MAX_ENTITY_REFERENCES);
             return this;
         }
 
         public void writeResult(ExecutionResult result, long start) throws IOException {
+            writeResult(result.columns(), result.iterator(), start);
+        }
+
+        public void writeResult(List<String> columns, Iterator<Map<String, Object>> rows, long start) throws IOException {
             g.writeStartObject();
-            final List<String> columns = result.columns();
             writeColumns(columns);
-            final int count = writeRows(result, columns);
+            if (isDedup()) g.writeBooleanField("dedup", true);
+            final int count = writeRows(rows, columns, -1);
             writeCount(count);
             writeTime(start);
             g.writeEndObject();
         }
 
+        public int writePage(long cursor, List<String> columns, Iterator<Map<String, Object>> rows, int limit, long start) throws IOException {
+            g.writeStartObject();
+            g.writeNumberField("cursor", cursor);
+            writeColumns(columns);
+            if (isDedup()) g.writeBooleanField("dedup", true);
+            final int count = writeRows(rows, columns, limit);
+            writeCount(count);
+            g.writeBooleanField("more", rows.hasNext());
+            writeTime(start);
+            g.writeEndObject();
+            return count;
+        }
+
+        public void writeError(Throwable error, long start) throws IOException {
+            g.writeStartObject();
+            g.writeStringField("error", String.valueOf(error.getMessage()));
+            g.writeStringField("exception", error.getClass().getSimpleName());
+            g.writeNumberField("time", System.currentTimeMillis() - start);
+            g.writeEndObject();
+        }
+
         protected void writeTime(long start) throws IOException {
             g.writeNumberField("time", System.currentTimeMillis() - start);
         }
@@ -98,25 +314,34 @@ public class JsonResultWriters {
             g.writeNumberField("count", count);
         }
 
-        protected int writeRows(ExecutionResult result, List<String> columns) throws IOException {
+        /**
+         * @param limit maximum number of rows to write, -1 for all
+         */
+        protected int writeRows(Iterator<Map<String, Object>> rows, List<String> columns, int limit) throws IOException {
             g.writeArrayFieldStart("rows");
             int count = 0;
-            for (Map<String, Object> row : result) {
+            while (count != limit && rows.hasNext()) {
                 count++;
-                g.writeStartArray();
-                for (String column : columns) {
-                    final Object value = row.get(column);
-                    g.writeStartObject();
-                    g.writeFieldName(type(value));
-                    writeValue(value);
-                    g.writeEndObject();
-                }
-                g.writeEndArray();
+                writeRow(rows.next(), columns);
+                afterRow();
             }
             g.writeEndArray();
             return count;
         }
 
+        protected void writeRow(Map<String, Object> row, List<String> columns) throws IOException {
+            g.writeStartArray();
+            for (String column : columns) {
+                final Object value = row.get(column);
+                final ValueSerializer serializer = serializer(value);
+                g.writeStartObject();
+                g.writeFieldName(serializer.getType());
+                serializer.write(g, value);
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+        }
+
         protected void writeColumns(List<String> columns) throws IOException {
             g.writeArrayFieldStart("columns");
             for (String column : columns) {
@@ -126,37 +351,38 @@ public class JsonResultWriters {
         }
 
         protected String type(final Object value) {
-            if (value == null) return "Null";
-            if (value instanceof Path) return "Path";
-            if (value instanceof Node) return "Node";
-            if (value instanceof Relationship) return "Relationship";
-            if (value instanceof Iterable) return "Array";
-            return value.getClass().getSimpleName();
+            return serializer(value).getType();
         }
-        /*
-
-       [1,2,3]
-       [{value:1,type:int},{value:"blub",type:"String"}]
-        */
 
         protected void writeValue(Object value) throws IOException {
-            if (value instanceof Node) {
-                writeNode((Node) value);
-                return;
-            }
-            if (value instanceof Relationship) {
-                writeRelationship((Relationship) value);
-                return;
+            serializer(value).write(g, value);
+        }
+
+        /**
+         * resolves the serializer once per concrete class, the last one is kept for columns of the same type
+         */
+        protected ValueSerializer serializer(Object value) {
+            if (value == null) return nullSerializer;
+            final Class<?> type = value.getClass();
+            if (type == lastType) return lastSerializer;
+            ValueSerializer serializer = resolvedSerializers.get(type);
+            if (serializer == null) {
+                serializer = resolveSerializer(type);
+                resolvedSerializers.put(type, serializer);
             }
-            if (value instanceof Path) {
-                writePath((Path) value);
-                return;
-            }
-            if (value instanceof Iterable) {
-                writeIterable((Iterable) value);
-                return;
-            }
-            g.writeObject(value);
+            lastType = type;
+            lastSerializer = serializer;
+            return serializer;
+        }
+
+        private ValueSerializer resolveSerializer(Class<?> type) {
+            if (Path.class.isAssignableFrom(type)) return pathSerializer; // paths are iterable too
+            if (Node.class.isAssignableFrom(type)) return nodeSerializer;
+            if (Relationship.class.isAssignableFrom(type)) return relationshipSerializer;
+            final ValueSerializer serializer = valueSerializers.resolve(type);
+            if (serializer != null) return serializer;
+            if (Iterable.class.isAssignableFrom(type)) return iterableSerializer;
+            return ValueSerializers.objectSerializer(type);
         }
 
         protected void writeIterable(Iterable values) throws IOException {
@@ -168,12 +394,30 @@ public class JsonResultWriters {
         }
 
         public void writeRelationship(Relationship relationship) throws IOException {
+            if (seenRelationships != null && seenRelationships.markSeen(relationship.getId())) {
+                writeReference("relationship", relationship.getId());
+                return;
+            }
+            if (useCache()) {
+                final long id = relationship.getId();
+                String encoded = entityCache.getRelationship(id);
+                if (encoded == null) {
+                    encoded = encode(relationship);
+                    entityCache.putRelationship(id, encoded);
+                }
+                g.writeRawValue(encoded);
+                return;
+            }
+            writeRelationshipData(relationship);
+        }
+
+        protected void writeRelationshipData(Relationship relationship) throws IOException {
             g.writeStartObject();
             writeId(relationship);
             writeRef("start", relationship.getStartNode());
             writeRef("end", relationship.getEndNode());
             g.writeStringField("type", relationship.getType().name());
-            writePropertyContainer(relationship);
+            writePropertyContainer(relationship, projection.getRelationshipKeys());
             g.writeEndObject();
         }
 
@@ -182,16 +426,70 @@ public class JsonResultWriters {
         }
 
         public void writeNode(Node node) throws IOException {
+            if (seenNodes != null && seenNodes.markSeen(node.getId())) {
+                writeReference("node", node.getId());
+                return;
+            }
+            if (useCache()) {
+                final long id = node.getId();
+                String encoded = entityCache.getNode(id);
+                if (encoded == null) {
+                    encoded = encode(node);
+                    entityCache.putNode(id, encoded);
+                }
+                g.writeRawValue(encoded);
+                return;
+            }
+            writeNodeData(node);
+        }
+
+        protected void writeNodeData(Node node) throws IOException {
             g.writeStartObject();
             writeId(node);
-            writePropertyContainer(node);
+            writePropertyContainer(node, projection.getNodeKeys());
             g.writeEndObject();
         }
 
+        /**
+         * renders the entity with the same writer methods into a separate generator
+         */
+        private String encode(PropertyContainer entity) throws IOException {
+            if (cacheGenerator == null) {
+                cacheBuffer = new StringWriter();
+                cacheGenerator = jsonFactory.createJsonGenerator(cacheBuffer);
+            }
+            final StringBuffer buffer = cacheBuffer.getBuffer();
+            buffer.setLength(0);
+            final JsonGenerator generator = g;
+            g = cacheGenerator;
+            try {
+                if (entity instanceof Node) writeNodeData((Node) entity);
+                else writeRelationshipData((Relationship) entity);
+                g.flush();
+            } finally {
+                g = generator;
+            }
+            // the generator separates subsequent root level values with a space
+            return buffer.charAt(0) == ' ' ? buffer.substring(1) : buffer.toString();
+        }
+
+        /**
+         * true while an entity is rendered into the character based generator of the entity cache
+         */
+        protected boolean isEncoding() {
+            return g == cacheGenerator;
+        }
+
         protected void writeId(Node node) throws IOException {
             writeRef("id", node);
         }
 
+        protected void writeReference(String type, long id) throws IOException {
+            g.writeStartObject();
+            g.writeNumberField(type, id);
+            g.writeEndObject();
+        }
+
         public void writePath(Path path) throws IOException {
             g.writeStartObject();
             g.writeNumberField("length", path.length());
@@ -214,18 +512,39 @@ public class JsonResultWriters {
             g.writeEndObject();
         }
 
-        protected void writePropertyContainer(PropertyContainer node) throws IOException {
+        protected void writePropertyContainer(PropertyContainer node, String[] keys) throws IOException {
+            if (keys != null) {
+                writeProjectedProperties(node, keys);
+                return;
+            }
             final Iterator<String> propertyKeys = node.getPropertyKeys().iterator();
             if (!propertyKeys.hasNext()) return;
             g.writeFieldName("data");
             g.writeStartObject();
             while (propertyKeys.hasNext()) {
                 String prop = propertyKeys.next();
-                g.writeObjectField(prop, node.getProperty(prop));
+                g.writeFieldName(prop);
+                writeValue(node.getProperty(prop));
             }
             g.writeEndObject();
         }
 
+        private void writeProjectedProperties(PropertyContainer node, String[] keys) throws IOException {
+            boolean started = false;
+            for (String key : keys) {
+                final Object value = node.getProperty(key, null);
+                if (value == null) continue;
+                if (!started) {
+                    g.writeFieldName("data");
+                    g.writeStartObject();
+                    started = true;
+                }
+                g.writeFieldName(key);
+                writeValue(value);
+            }
+            if (started) g.writeEndObject();
+        }
+
         protected  void writeRef(String fieldName, Node node) throws IOException {
             g.writeNumberField(fieldName, node.getId());
         }
@@ -235,29 +554,206 @@ public class JsonResultWriters {
         }
     }
 
+    /**
+     * Writes cells as bare values, the column types are sent as {"types":[...]} element in the rows array
+     * before the first row and again only when a (non-null) cell type differs from the previous one.
+     */
+    class JsonCompactWriter extends JsonWriter {
+        JsonCompactWriter(OutputStream output) throws IOException {
+            super(output);
+        }
+
+        @Override
+        protected int writeRows(Iterator<Map<String, Object>> rows, List<String> columns, int limit) throws IOException {
+            g.writeArrayFieldStart("rows");
+            final String[] types = new String[columns.size()];
+            int count = 0;
+            while (count != limit && rows.hasNext()) {
+                final Map<String, Object> row = rows.next();
+                writeTypesIfChanged(row, columns, types, count == 0);
+                count++;
+                g.writeStartArray();
+                for (String column : columns) {
+                    writeValue(row.get(column));
+                }
+                g.writeEndArray();
+                afterRow();
+            }
+            g.writeEndArray();
+            return count;
+        }
+
+        private void writeTypesIfChanged(Map<String, Object> row, List<String> columns, String[] types, boolean first) throws IOException {
+            boolean changed = first;
+            int i = 0;
+            for (String column : columns) {
+                final Object value = row.get(column);
+                if (first || value != null) {
+                    final String type = type(value);
+                    if (!type.equals(types[i])) {
+                        types[i] = type;
+                        changed = true;
+                    }
+                }
+                i++;
+            }
+            if (!changed) return;
+            g.writeStartObject();
+            g.writeArrayFieldStart("types");
+            for (String type : types) {
+                g.writeString(type);
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+    }
+
+    /**
+     * Newline delimited JSON: a header line {"columns":[...]}, one line per row with the typed cells of the default format
+     * and a trailer line {"count":n,"time":ms,"bytes":n}. Results are not wrapped in arrays and never indented.
+     */
+    class JsonNdjsonWriter extends JsonWriter {
+        JsonNdjsonWriter(OutputStream output) throws IOException {
+            super(output);
+            g.setPrettyPrinter(new LinePrettyPrinter());
+        }
+
+        @Override
+        public void writeResult(List<String> columns, Iterator<Map<String, Object>> rows, long start) throws IOException {
+            writeLines(null, columns, rows, -1, start);
+        }
+
+        @Override
+        public int writePage(long cursor, List<String> columns, Iterator<Map<String, Object>> rows, int limit, long start) throws IOException {
+            return writeLines(cursor, columns, rows, limit, start);
+        }
+
+        private int writeLines(Long cursor, List<String> columns, Iterator<Map<String, Object>> rows, int limit, long start) throws IOException {
+            g.writeStartObject();
+            if (cursor != null) g.writeNumberField("cursor", cursor);
+            writeColumns(columns);
+            if (isDedup()) g.writeBooleanField("dedup", true);
+            g.writeEndObject();
+            endLine();
+            int count = 0;
+            while (count != limit && rows.hasNext()) {
+                count++;
+                writeRow(rows.next(), columns);
+                endLine();
+                afterRow();
+            }
+            g.writeStartObject();
+            writeCount(count);
+            if (cursor != null) g.writeBooleanField("more", rows.hasNext());
+            writeTime(start);
+            g.writeNumberField("bytes", getBytesWritten());
+            g.writeEndObject();
+            endLine();
+            return count;
+        }
+
+        @Override
+        public void writeError(Throwable error, long start) throws IOException {
+            super.writeError(error, start);
+            endLine();
+        }
+
+        private void endLine() throws IOException {
+            g.writeRaw('\n');
+        }
+
+        @Override
+        public JsonResultWriter usePrettyPrinter() {
+            return this;
+        }
+
+        @Override
+        public void startArray() throws IOException {
+        }
+
+        @Override
+        public void endArray() throws IOException {
+            g.flush();
+        }
+    }
+
+    /**
+     * Discard mode: drains the results completely so that the query does all of its (lazy) work, but writes only the
+     * columns, row count and time. Nodes, relationships and paths written by commands are dropped as well.
+     */
+    class JsonCountWriter extends JsonWriter {
+        JsonCountWriter(OutputStream output) throws IOException {
+            super(output);
+        }
+
+        @Override
+        protected int writeRows(Iterator<Map<String, Object>> rows, List<String> columns, int limit) throws IOException {
+            int count = 0;
+            while (count != limit && rows.hasNext()) {
+                rows.next();
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public void writeNode(Node node) throws IOException {
+        }
+
+        @Override
+        public void writeRelationship(Relationship relationship) throws IOException {
+        }
+
+        @Override
+        public void writePath(Path path) throws IOException {
+        }
+    }
+
+    /**
+     * no separator between root values, the ndjson writer terminates each line itself
+     */
+    private static class LinePrettyPrinter extends MinimalPrettyPrinter {
+        @Override
+        public void writeRootValueSeparator(JsonGenerator jg) {
+        }
+    }
+
     class JsonCompatWriter extends JsonWriter {
         protected final String uri;
+        private final byte[] nodePrefix;
+        private final byte[] relationshipPrefix;
+        private final byte[] uriBuffer;
 
         JsonCompatWriter(OutputStream output, String uri) throws IOException {
             super(output);
             this.uri = uri.endsWith("/") ? uri : uri + "/";
+            this.nodePrefix = (this.uri + "node/").getBytes(UTF8);
+            this.relationshipPrefix = (this.uri + "relationship/").getBytes(UTF8);
+            this.uriBuffer = new byte[relationshipPrefix.length + MAX_LONG_DIGITS];
         }
 
-        protected int writeRows(ExecutionResult result, List<String> columns) throws IOException {
+        protected int writeRows(Iterator<Map<String, Object>> rows, List<String> columns, int limit) throws IOException {
             g.writeArrayFieldStart("data");
             int count = 0;
-            for (Map<String, Object> row : result) {
+            while (count != limit && rows.hasNext()) {
+                final Map<String, Object> row = rows.next();
                 count++;
                 g.writeStartArray();
                 for (String column : columns) {
                     writeValue(row.get(column));
                 }
                 g.writeEndArray();
+                afterRow();
             }
             g.writeEndArray();
             return count;
         }
 
+        @Override
+        public JsonResultWriter useEntityReferences() {
+            return this; // not part of the rest format
+        }
+
         @Override
         protected void writeTime(long start) throws IOException {
         }
@@ -278,20 +774,27 @@ public class JsonResultWriters {
 
         @Override
         protected void writeRef(String fieldName, Node node) throws IOException {
-            g.writeStringField(fieldName, nodeUri(node));
-        }
-
-        private String nodeUri(Node node) {
-            return uri + "node/" + node.getId();
+            g.writeFieldName(fieldName);
+            writeUri(nodePrefix, node.getId());
         }
 
         @Override
         protected void writeRef(String fieldName, Relationship relationship) throws IOException {
-            g.writeStringField(fieldName, relationshipUri(relationship));
-        }
-
-        private String relationshipUri(Relationship relationship) {
-            return uri + "relationship/" + relationship.getId();
+            g.writeFieldName(fieldName);
+            writeUri(relationshipPrefix, relationship.getId());
+        }
+
+        /**
+         * copies the pre-encoded prefix and the digits of the id into the buffer and writes it as string value
+         */
+        private void writeUri(byte[] prefix, long id) throws IOException {
+            System.arraycopy(prefix, 0, uriBuffer, 0, prefix.length);
+            final int length = writeDigits(id, uriBuffer, prefix.length);
+            if (isEncoding()) {
+                g.writeString(new String(uriBuffer, 0, length, UTF8)); // character based generators don't accept utf-8 bytes
+            } else {
+                g.writeRawUTF8String(uriBuffer, 0, length);
+            }
         }
 
         public void writePath(Path path) throws IOException {
@@ -302,18 +805,34 @@ public class JsonResultWriters {
 
             g.writeArrayFieldStart("nodes");
             for (Node node : path.nodes()) {
-                g.writeString(nodeUri(node));
+                writeUri(nodePrefix, node.getId());
             }
             g.writeEndArray();
             g.writeArrayFieldStart("relationships");
             for (Relationship relationship : path.relationships()) {
-                g.writeString(relationshipUri(relationship));
+                writeUri(relationshipPrefix, relationship.getId());
             }
             g.writeEndArray();
             g.writeEndObject();
         }
     }
 
+    /**
+     * writes the decimal digits of a non-negative id into the buffer
+     *
+     * @return the end offset in the buffer
+     */
+    static int writeDigits(long value, byte[] buffer, int offset) {
+        int end = offset;
+        for (long rest = value; rest >= 10; rest /= 10) end++;
+        final int length = end + 1;
+        do {
+            buffer[end--] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        return length;
+    }
+
     public JsonResultWriter writeCompatTo(OutputStream output, String uri) throws IOException {
         return new JsonCompatWriter(output, uri);
     }
@@ -321,7 +840,27 @@ public class JsonResultWriters {
     public JsonResultWriter writeTo(OutputStream output) throws IOException {
         return new JsonWriter(output);
     }
+
+    public JsonResultWriter writeCompactTo(OutputStream output) throws IOException {
+        return new JsonCompactWriter(output);
+    }
+
+    public JsonResultWriter writeNdjsonTo(OutputStream output) throws IOException {
+        return new JsonNdjsonWriter(output);
+    }
+
+    public JsonResultWriter writeCsvTo(OutputStream output) throws IOException {
+        return DelimitedResultWriter.csv(output, flushStatistics, probeMillis);
+    }
+
+    public JsonResultWriter writeTsvTo(OutputStream output) throws IOException {
+        return DelimitedResultWriter.tsv(output, flushStatistics, probeMillis);
+    }
+
+    /**
+     * executes and drains the results without serializing rows, for measuring the query cost separately
+     */
     public JsonResultWriter writeNothingTo(OutputStream output) throws IOException {
-        return new NullJsonResultWriter();
+        return new JsonCountWriter(output);
     }
 }
@@ -0,0 +1,35 @@
+package org.neo4j.server.extension.streaming.cypher.json;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes passed on to the underlying stream.
+ *
+ * @author mh
+ * @since 21.04.12
+ */
+class MeteredOutputStream extends FilterOutputStream {
+    private long count;
+
+    MeteredOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+
+    long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,74 @@
+package org.neo4j.server.extension.streaming.cypher.json;
+
+/**
+ * Open addressing set of non-negative longs (entity ids) without boxing. Stops growing at maxSize,
+ * further values are not recorded.
+ *
+ * @author mh
+ * @since 19.04.12
+ */
+class PrimitiveLongSet {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long EMPTY = 0; // values are stored as id + 1
+
+    private final int maxSize;
+    private long[] table;
+    private int size;
+
+    PrimitiveLongSet(int maxSize) {
+        this.maxSize = maxSize;
+        this.table = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @return true if the value was seen before, otherwise records it (if the set is not full yet) and returns false
+     */
+    boolean markSeen(long value) {
+        final long stored = value + 1;
+        int mask = table.length - 1;
+        int slot = hash(stored) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == stored) return true;
+            slot = (slot + 1) & mask;
+        }
+        if (size >= maxSize) return false;
+        table[slot] = stored;
+        size++;
+        if (size * 2 > table.length) grow();
+        return false;
+    }
+
+    boolean contains(long value) {
+        final long stored = value + 1;
+        final int mask = table.length - 1;
+        int slot = hash(stored) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == stored) return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        final long[] old = table;
+        table = new long[old.length * 2];
+        final int mask = table.length - 1;
+        for (long stored : old) {
+            if (stored == EMPTY) continue;
+            int slot = hash(stored) & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = stored;
+        }
+    }
+
+    private static int hash(long value) {
+        final long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,60 @@
+package org.neo4j.server.extension.streaming.cypher.json;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects the properties that are rendered for nodes and relationships, other properties are never loaded.
+ * Given as {"node" : ["name","age"], "relationship" : "ids"}, a missing entry renders all properties,
+ * "ids" renders no properties at all.
+ *
+ * @author mh
+ * @since 20.04.12
+ */
+public class Projection {
+    public static final Projection ALL = new Projection(null, null);
+    private static final String[] IDS_ONLY = new String[0];
+
+    private final String[] nodeKeys;
+    private final String[] relationshipKeys;
+
+    public Projection(String[] nodeKeys, String[] relationshipKeys) {
+        this.nodeKeys = nodeKeys;
+        this.relationshipKeys = relationshipKeys;
+    }
+
+    public static Projection from(Object spec) {
+        if (spec == null) return ALL;
+        if (!(spec instanceof Map)) throw new IllegalArgumentException("Invalid projection " + spec);
+        final Map map = (Map) spec;
+        return new Projection(keys(map.get("node")), keys(map.get("relationship")));
+    }
+
+    private static String[] keys(Object spec) {
+        if (spec == null || "all".equals(spec)) return null;
+        if ("ids".equals(spec)) return IDS_ONLY;
+        if (spec instanceof List) {
+            final List list = (List) spec;
+            final String[] keys = new String[list.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = list.get(i).toString();
+            }
+            return keys;
+        }
+        throw new IllegalArgumentException("Invalid projection " + spec);
+    }
+
+    /**
+     * @return the property keys to render for nodes, null for all properties
+     */
+    public String[] getNodeKeys() {
+        return nodeKeys;
+    }
+
+    /**
+     * @return the property keys to render for relationships, null for all properties
+     */
+    public String[] getRelationshipKeys() {
+        return relationshipKeys;
+    }
+}
@@ -0,0 +1,28 @@
+package org.neo4j.server.extension.streaming.cypher.json;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * Writes values of one class directly to the generator, see {@link ValueSerializers}.
+ *
+ * @author mh
+ * @since 20.04.12
+ */
+public abstract class ValueSerializer {
+    private final String type;
+
+    protected ValueSerializer(String type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the type name of the cells containing this kind of value
+     */
+    public String getType() {
+        return type;
+    }
+
+    public abstract void write(JsonGenerator g, Object value) throws IOException;
+}
@@ -0,0 +1,173 @@
+package org.neo4j.server.extension.streaming.cypher.json;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of serializers for property and cypher values keyed by class, contains direct generator calls for all
+ * Neo4j property types. Writers resolve each concrete class once, values without a serializer are written
+ * by the ObjectMapper.
+ *
+ * @author mh
+ * @since 20.04.12
+ */
+public class ValueSerializers {
+    private final Map<Class<?>, ValueSerializer> serializers = new LinkedHashMap<Class<?>, ValueSerializer>();
+
+    public ValueSerializers() {
+        register(String.class, new ValueSerializer("String") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeString((String) value);
+            }
+        });
+        register(Integer.class, new ValueSerializer("Integer") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeNumber((Integer) value);
+            }
+        });
+        register(Long.class, new ValueSerializer("Long") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeNumber((Long) value);
+            }
+        });
+        register(Double.class, new ValueSerializer("Double") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeNumber((Double) value);
+            }
+        });
+        register(Float.class, new ValueSerializer("Float") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeNumber((Float) value);
+            }
+        });
+        register(Short.class, new ValueSerializer("Short") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeNumber((Short) value);
+            }
+        });
+        register(Byte.class, new ValueSerializer("Byte") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeNumber((Byte) value);
+            }
+        });
+        register(Boolean.class, new ValueSerializer("Boolean") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeBoolean((Boolean) value);
+            }
+        });
+        register(Character.class, new ValueSerializer("Character") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeString(String.valueOf(((Character) value).charValue()));
+            }
+        });
+        register(String[].class, new ValueSerializer("String[]") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeStartArray();
+                for (String s : (String[]) value) {
+                    g.writeString(s);
+                }
+                g.writeEndArray();
+            }
+        });
+        register(int[].class, new ValueSerializer("int[]") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeStartArray();
+                for (int i : (int[]) value) {
+                    g.writeNumber(i);
+                }
+                g.writeEndArray();
+            }
+        });
+        register(long[].class, new ValueSerializer("long[]") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeStartArray();
+                for (long l : (long[]) value) {
+                    g.writeNumber(l);
+                }
+                g.writeEndArray();
+            }
+        });
+        register(double[].class, new ValueSerializer("double[]") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeStartArray();
+                for (double d : (double[]) value) {
+                    g.writeNumber(d);
+                }
+                g.writeEndArray();
+            }
+        });
+        register(float[].class, new ValueSerializer("float[]") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeStartArray();
+                for (float f : (float[]) value) {
+                    g.writeNumber(f);
+                }
+                g.writeEndArray();
+            }
+        });
+        register(short[].class, new ValueSerializer("short[]") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeStartArray();
+                for (short s : (short[]) value) {
+                    g.writeNumber(s);
+                }
+                g.writeEndArray();
+            }
+        });
+        register(boolean[].class, new ValueSerializer("boolean[]") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeStartArray();
+                for (boolean b : (boolean[]) value) {
+                    g.writeBoolean(b);
+                }
+                g.writeEndArray();
+            }
+        });
+        // same as the ObjectMapper: char[] as String, byte[] as base64
+        register(char[].class, new ValueSerializer("char[]") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                final char[] chars = (char[]) value;
+                g.writeString(chars, 0, chars.length);
+            }
+        });
+        register(byte[].class, new ValueSerializer("byte[]") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeBinary((byte[]) value);
+            }
+        });
+    }
+
+    /**
+     * registers a serializer for values of the given class, it is also used for subclasses without their own serializer.
+     * Writers resolve each class once, so register custom types before creating writers.
+     */
+    public synchronized void register(Class<?> type, ValueSerializer serializer) {
+        serializers.put(type, serializer);
+    }
+
+    /**
+     * @return the serializer registered for the class or the first one registered for a supertype, null if there is none
+     */
+    synchronized ValueSerializer resolve(Class<?> type) {
+        final ValueSerializer serializer = serializers.get(type);
+        if (serializer != null) return serializer;
+        for (Map.Entry<Class<?>, ValueSerializer> entry : serializers.entrySet()) {
+            if (entry.getKey().isAssignableFrom(type)) return entry.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * @return a serializer that uses the ObjectMapper
+     */
+    static ValueSerializer objectSerializer(Class<?> type) {
+        return new ValueSerializer(type.getSimpleName()) {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeObject(value);
+            }
+        };
+    }
+}
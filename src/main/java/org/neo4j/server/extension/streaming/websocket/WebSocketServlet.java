@@ -8,6 +8,11 @@ import org.eclipse.jetty.websocket.WebSocketFactory.Acceptor;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.neo4j.server.extension.streaming.commands.CommandHandler;
+import org.neo4j.server.extension.streaming.cypher.AdmissionController;
+import org.neo4j.server.extension.streaming.cypher.CypherService;
+import org.neo4j.server.extension.streaming.cypher.RequestParser;
+import org.neo4j.server.extension.streaming.cypher.ServerBusyException;
+import org.neo4j.server.extension.streaming.cypher.json.FlushPolicy;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriter;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriters;
 
@@ -19,42 +24,109 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class WebSocketServlet extends HttpServlet {
 
 	private static WebSocketFactory factory                   = null;
     private GraphDatabaseService gdb;
+    private CypherService cypherService;
+    private boolean ownsCypherService;
+    private AdmissionController admissionController;
 
     public WebSocketServlet(GraphDatabaseService gdb) {
         this.gdb = gdb;
     }
 
+    public WebSocketServlet(GraphDatabaseService gdb, CypherService cypherService) {
+        this.gdb = gdb;
+        this.cypherService = cypherService;
+    }
+
+    public WebSocketServlet(GraphDatabaseService gdb, CypherService cypherService, AdmissionController admissionController) {
+        this(gdb, cypherService);
+        this.admissionController = admissionController;
+    }
+
     public WebSocketServlet() {
     }
 
     // todo chunked
     static class WriterSelector {
+        private static final Pattern TIMEOUT = Pattern.compile("timeout=(\\d+)");
         private boolean pretty;
         private boolean compat;
+        private boolean compact;
         private final JsonResultWriters writers;
         private final String requestUri;
         private boolean none;
-
-        WriterSelector(HttpServletRequest request, String protocol) {
+        private boolean binary;
+        private boolean dedup;
+        private boolean cache;
+        private boolean ndjson;
+        private boolean csv;
+        private boolean tsv;
+        private FlushPolicy flushPolicy;
+        private long timeoutMillis;
+        private boolean parallel;
+
+        WriterSelector(HttpServletRequest request, String protocol, JsonResultWriters writers) {
             final String accept = protocol!=null ? protocol : request.getHeader("Accept");
             pretty =    accept.contains("pretty");
             compat = accept.contains("compat");
+            compact = accept.contains("compact");
             none = accept.contains("none");
-            writers = new JsonResultWriters();
+            ndjson = accept.contains("ndjson");
+            csv = accept.contains("csv");
+            tsv = accept.contains("tsv");
+            binary = !ndjson && !csv && !tsv && accept.contains("smile");
+            dedup = accept.contains("dedup");
+            cache = accept.contains("cache");
+            parallel = accept.contains("parallel");
+            flushPolicy = FlushPolicy.parse(accept);
+            final Matcher timeout = TIMEOUT.matcher(accept);
+            timeoutMillis = timeout.find() ? Long.parseLong(timeout.group(1)) : 0;
+            this.writers = binary ? writers.binary() : writers;
             requestUri = "http://localhost:7474/command"; // TODO request.getRequestURL().toString(); -> no uri exception, there is no uri in the request
         }
 
         public JsonResultWriter writeTo(OutputStream stream) throws IOException {
-            final JsonResultWriter writer = compat ? writers.writeCompatTo(stream,restBaseUri(requestUri)) : none ? writers.writeNothingTo(stream) : writers.writeTo(stream);
+            final JsonResultWriter writer = compat ? writers.writeCompatTo(stream,restBaseUri(requestUri)) : none ? writers.writeNothingTo(stream) :
+                    ndjson ? writers.writeNdjsonTo(stream) : csv ? writers.writeCsvTo(stream) : tsv ? writers.writeTsvTo(stream) :
+                    compact ? writers.writeCompactTo(stream) : writers.writeTo(stream);
             if (pretty) writer.usePrettyPrinter();
+            if (dedup) writer.useEntityReferences();
+            if (cache) writer.useEntityCache(JsonResultWriters.DEFAULT_ENTITY_CACHE_SIZE);
+            if (flushPolicy != null) writer.useFlushPolicy(flushPolicy);
             return writer;
         }
 
+        public boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * deadline per message from timeout=millis, 0 for none
+         */
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        /**
+         * read-only cypher messages are executed concurrently
+         */
+        public boolean isParallel() {
+            return parallel;
+        }
+
+        /**
+         * with a flush policy the result is sent in several messages, one per flush
+         */
+        public boolean isChunked() {
+            return flushPolicy != null;
+        }
+
         private String restBaseUri(String requestUri) {
             try {
                 final URL url = new URL(requestUri);
@@ -68,8 +140,15 @@ public class WebSocketServlet extends HttpServlet {
     @Override
 	public void init() {
         if (gdb==null) gdb = createDatabase();
-        final CommandHandler commandHandler = new CommandHandler(gdb);
+        if (cypherService==null) {
+            cypherService = new CypherService(gdb);
+            ownsCypherService = true;
+        }
+        if (admissionController==null) admissionController = new AdmissionController();
+        final CommandHandler commandHandler = new CommandHandler(gdb, cypherService);
         final ObjectMapper objectMapper = new ObjectMapper();
+        final JsonResultWriters writers = new JsonResultWriters(objectMapper);
+        final RequestParser requestParser = new RequestParser(objectMapper.getJsonFactory());
         factory = new WebSocketFactory(new Acceptor() {
 			public WebSocket doWebSocketConnect(final HttpServletRequest request, final String protocol) {
                 // todo check protocol neo4j
@@ -78,8 +157,19 @@ public class WebSocketServlet extends HttpServlet {
 
                     public void onMessage(String msg) {
                         try {
-                            final List<List> commands = objectMapper.readValue(msg, List.class);
-                            commandHandler.handle(commands,new WebsocketJsonWriter(connection, new WriterSelector(request,protocol)));
+                            final Object parsed = requestParser.parse(msg);
+                            if (!(parsed instanceof List)) throw new IllegalArgumentException("Expected a list of commands");
+                            final List<List> commands = (List<List>) parsed;
+                            final WriterSelector writerSelector = new WriterSelector(request, protocol, writers);
+                            final boolean write = commandHandler.isWrite(commands);
+                            admissionController.acquire(write);
+                            try {
+                                commandHandler.handle(commands, new WebsocketJsonWriter(connection, writerSelector), writerSelector.getTimeoutMillis(), writerSelector.isParallel());
+                            } finally {
+                                admissionController.release(write);
+                            }
+                        } catch (ServerBusyException e) {
+                            sendMessage("Busy: " + e.getMessage());
                         } catch (Exception e) {
                             e.printStackTrace();
                             sendMessage("Exception: " + e.getMessage());
@@ -122,6 +212,7 @@ public class WebSocketServlet extends HttpServlet {
     @Override
 	public void destroy() {
         try {
+            if (ownsCypherService) cypherService.shutdown();
             gdb.shutdown();
             factory.stop();
         } catch (Exception e) {
@@ -5,11 +5,16 @@ import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.server.extension.streaming.cypher.json.FlushPolicy;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriter;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriters;
+import org.neo4j.server.extension.streaming.cypher.json.Projection;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author mh
@@ -20,11 +25,18 @@ public class WebsocketJsonWriter implements JsonResultWriter {
     private final ByteArrayOutputStream stream;
     private final JsonResultWriter writer;
     private final WebSocket.Connection connection;
+    private final boolean binary;
 
     public WebsocketJsonWriter(WebSocket.Connection connection, WebSocketServlet.WriterSelector writerSelector) throws IOException {
         this.connection = connection;
-        stream = new ByteArrayOutputStream();
+        stream = writerSelector.isChunked() ? new ByteArrayOutputStream() {
+            @Override
+            public void flush() throws IOException {
+                sendStream();
+            }
+        } : new ByteArrayOutputStream();
         writer = writerSelector.writeTo(stream);
+        binary = writerSelector.isBinary();
     }
 
     @Override
@@ -32,11 +44,46 @@ public class WebsocketJsonWriter implements JsonResultWriter {
         writer.writeResult(result,start);
     }
 
+    @Override
+    public void writeResult(List<String> columns, Iterator<Map<String, Object>> rows, long start) throws IOException {
+        writer.writeResult(columns, rows, start);
+    }
+
+    @Override
+    public int writePage(long cursor, List<String> columns, Iterator<Map<String, Object>> rows, int limit, long start) throws IOException {
+        return writer.writePage(cursor, columns, rows, limit, start);
+    }
+
+    @Override
+    public void writeError(Throwable error, long start) throws IOException {
+        writer.writeError(error, start);
+    }
+
     @Override
     public JsonResultWriter usePrettyPrinter() {
         return writer.usePrettyPrinter();
     }
 
+    @Override
+    public JsonResultWriter useEntityReferences() {
+        return writer.useEntityReferences();
+    }
+
+    @Override
+    public JsonResultWriter useEntityCache(int maxEntries) {
+        return writer.useEntityCache(maxEntries);
+    }
+
+    @Override
+    public JsonResultWriter useProjection(Projection projection) {
+        return writer.useProjection(projection);
+    }
+
+    @Override
+    public JsonResultWriter useFlushPolicy(FlushPolicy flushPolicy) {
+        return writer.useFlushPolicy(flushPolicy);
+    }
+
     @Override
     public void startArray() throws IOException {
         writer.startArray();
@@ -45,7 +92,6 @@ public class WebsocketJsonWriter implements JsonResultWriter {
     @Override
     public void endArray() throws IOException {
         writer.endArray();
-        // todo control chunked writing with config/headers sendStream();
     }
 
     @Override
@@ -71,7 +117,8 @@ public class WebsocketJsonWriter implements JsonResultWriter {
 
     private void sendStream() throws IOException {
         if (stream.size()<=0) return;
-        connection.sendMessage(stream.toString());
+        if (binary) connection.sendMessage(stream.toByteArray(), 0, stream.size());
+        else connection.sendMessage(stream.toString());
         stream.reset();
     }
 
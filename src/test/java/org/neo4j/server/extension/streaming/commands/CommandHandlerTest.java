@@ -1,10 +1,13 @@
 package org.neo4j.server.extension.streaming.commands;
 
+import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.server.extension.streaming.cypher.PrimitiveLongList;
+import org.neo4j.server.extension.streaming.cypher.RequestParser;
 import org.neo4j.server.extension.streaming.cypher.json.CountingOutputStream;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriter;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriters;
@@ -84,6 +87,41 @@ public class CommandHandlerTest {
         assertEquals(props, nodeData.get("data"));
         */
     }
+
+    @Test
+    public void testCypherWithProjection() throws Exception {
+        final Collection<List> commands = Arrays.<List>asList(
+                asList("UPDATE_NODES", 0, map("data", map("name", "foo", "age", 42))),
+                asList("CYPHER", map("query", "start n=node(0) return n", "projection", map("node", asList("name"))))
+        );
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        handler.handle(commands, new JsonResultWriters().writeTo(stream));
+        final List<List<Map>> resultData = new ObjectMapper().readValue(stream.toString(), List.class);
+        final List<List<Map>> rows = (List<List<Map>>) resultData.get(1).get(0).get("rows");
+        final Map node = (Map) rows.get(0).get(0).get("Node");
+        assertEquals(map("name", "foo"), node.get("data"));
+    }
+
+    @Test
+    public void testUpdateNodesWithParsedIdArray() throws Exception {
+        final String ids = Arrays.toString(new long[RequestParser.DEFAULT_MIN_PRIMITIVE_ARRAY]);
+        final List<List> commands = (List<List>) new RequestParser(new JsonFactory()).parse("[[\"UPDATE_NODES\"," + ids + ",{\"data\":{\"name\":\"foo\"}}]]");
+        assertEquals(true, commands.get(0).get(1) instanceof PrimitiveLongList);
+        handler.handle(commands, new JsonResultWriters().writeTo(new ByteArrayOutputStream()));
+        assertEquals("foo", gdb.getNodeById(0).getProperty("name"));
+    }
+
+    @Test
+    public void testParsedIntegerArraysHaveLongElementsWhateverTheirLength() throws Exception {
+        final RequestParser parser = new RequestParser(new JsonFactory());
+        final String ids = Arrays.toString(new long[RequestParser.DEFAULT_MIN_PRIMITIVE_ARRAY]);
+        final Map<String, List> params = (Map<String, List>) parser.parse("{\"few\":[1,2,3],\"many\":" + ids + ",\"mixed\":[1,\"a\",2]}");
+        assertEquals(Long.valueOf(1), params.get("few").get(0));
+        assertEquals(Long.valueOf(0), params.get("many").get(0));
+        assertEquals(Integer.valueOf(1), params.get("mixed").get(0));
+        assertEquals(Integer.valueOf(2), params.get("mixed").get(2));
+    }
+
     @Test @Ignore("slow test")
     public void testAddManyNodes() throws Exception {
         final Map<String, Object> data = map("data", map("name", "foo"));
@@ -14,9 +14,11 @@ import org.neo4j.server.configuration.ThirdPartyJaxRsPackage;
 import org.neo4j.server.extension.LocalTestServer;
 import org.neo4j.server.extension.streaming.cypher.CypherHttpService;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
@@ -101,6 +103,46 @@ public class CypherHttpServiceTest {
         assertTrue(result.contains("\n "));
         response.close();
     }
+    @Test
+    public void queryGzipCompressed() throws Exception {
+        createData(getGraphDb(), FEW_NODES);
+        String query = "start n=node(*) match p=n-[r]-m return n,r,m,p";
+        ClientResponse response = Client.create().resource(createQueryURI()).header("Accept-Encoding", "gzip")
+                .post(ClientResponse.class, new ObjectMapper().writeValueAsString(MapUtil.map("query", query)));
+        assertEquals(ClientResponse.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("gzip", response.getHeaders().getFirst("Content-Encoding"));
+        final Map data = new ObjectMapper().readValue(new GZIPInputStream(response.getEntityInputStream()), Map.class);
+        response.close();
+        assertEquals(asList("n","r","m","p"), data.get("columns"));
+        assertEquals(data.get("count"), ((List) data.get("rows")).size());
+    }
+
+    @Test
+    public void queryWithLargeIdListParameter() throws Exception {
+        final long[] ids = new long[RequestParser.DEFAULT_MIN_PRIMITIVE_ARRAY + 4];
+        final String body = "{\"query\":\"start n=node({ids}) return n\",\"params\":{\"ids\":" + Arrays.toString(ids) + "}}";
+        ClientResponse response = Client.create().resource(createQueryURI()).post(ClientResponse.class, body);
+        assertEquals(ClientResponse.Status.OK.getStatusCode(), response.getStatus());
+        final Map data = new ObjectMapper().readValue(response.getEntity(String.class), Map.class);
+        response.close();
+        assertEquals(ids.length, data.get("count"));
+    }
+
+    @Test
+    public void failedWritesReleaseTheirAdmission() throws Exception {
+        final String failing = new ObjectMapper().writeValueAsString(MapUtil.map("query", "start n=node(123456789) set n.name = 'foo'"));
+        for (int i = 0; i < 3; i++) {
+            ClientResponse response = Client.create().resource(createQueryURI()).post(ClientResponse.class, failing);
+            response.getEntity(String.class);
+            response.close();
+        }
+        ClientResponse response = Client.create().resource(createQueryURI() + "/cursor")
+                .post(ClientResponse.class, new ObjectMapper().writeValueAsString(MapUtil.map("query", "start n=node(0) set n.name = 'bar' return n", "limit", 1)));
+        assertEquals(ClientResponse.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(1, new ObjectMapper().readValue(response.getEntity(String.class), Map.class).get("count"));
+        response.close();
+    }
+
     private String createQueryURI() {
         return neoServer.baseUri().toString() + CONTEXT_PATH;
     }
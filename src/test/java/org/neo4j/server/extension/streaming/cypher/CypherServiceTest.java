@@ -3,22 +3,30 @@ package org.neo4j.server.extension.streaming.cypher;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.neo4j.graphdb.DynamicRelationshipType;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.server.extension.streaming.cypher.json.CountingOutputStream;
+import org.neo4j.server.extension.streaming.cypher.json.ExecutionResultStub;
+import org.neo4j.server.extension.streaming.cypher.json.FlushPolicy;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriter;
 import org.neo4j.server.extension.streaming.cypher.json.JsonResultWriters;
+import org.neo4j.server.extension.streaming.cypher.json.Projection;
 import org.neo4j.test.ImpermanentGraphDatabase;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 /**
  * @author mh
@@ -71,6 +79,7 @@ public class CypherServiceTest {
         assertEquals("n2", extract(columns, row, "name",String.class));
         assertEquals(1, extract(columns, row, "path",Map.class).get("length"));
         assertEquals((int) refNode.getId(), ((Map) extract(columns, row, "all", List.class).get(0)).get("id"));
+        service.shutdown();
     }
 
     @Test
@@ -109,6 +118,269 @@ public class CypherServiceTest {
         assertEquals(refNodeUri, extract2(columns, row, "path", Map.class).get("start"));
         assertEquals(node2NodeUri, extract2(columns, row, "path", Map.class).get("end"));
         assertEquals(refNodeUri, ((Map) extract2(columns, row, "all", List.class).get(0)).get("self"));
+        service.shutdown();
+    }
+
+    @Test
+    public void testSharedServiceReusesParsedQueries() throws IOException {
+        final CypherService service = new CypherService(gdb);
+        final JsonResultWriters writers = new JsonResultWriters();
+        for (int i = 0; i < 100; i++) {
+            service.execute("start n=node(0) return n", null, writers.writeTo(new CountingOutputStream()));
+        }
+        assertEquals(1, service.getQueryCache().getMisses()); // parsed once by the shared engine
+        assertEquals(99, service.getQueryCache().getHits());
+        assertEquals(1, service.getQueryCache().size());
+        assertEquals(100L, ((Map) service.stats().get("executions")).get("completed"));
+        service.shutdown();
+    }
+
+    @Test @Ignore("slow test")
+    public void testPerRequestOverheadOfSharedService() throws IOException {
+        final String query = "start n=node(0) return n";
+        final int runs = 1000;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < runs; i++) {
+            final CypherService perRequestService = new CypherService(gdb);
+            perRequestService.execute(query, null, new JsonResultWriters().writeTo(new CountingOutputStream()));
+            perRequestService.shutdown();
+        }
+        final long perRequest = System.currentTimeMillis() - start;
+
+        final CypherService service = new CypherService(gdb);
+        final JsonResultWriters writers = new JsonResultWriters();
+        start = System.currentTimeMillis();
+        for (int i = 0; i < runs; i++) {
+            service.execute(query, null, writers.writeTo(new CountingOutputStream()));
+        }
+        final long shared = System.currentTimeMillis() - start;
+        service.shutdown();
+        System.out.println(runs + " queries with a new engine per request took " + perRequest + " ms, with a shared engine " + shared + " ms.");
+    }
+
+    @Test
+    public void testQueryCacheHitsAndEvictions() throws IOException {
+        final CypherService service = new CypherService(gdb, 1);
+        final CypherQueryCache cache = service.getQueryCache();
+        service.execute("start n=node(0) return n", null, new JsonResultWriters().writeTo(new CountingOutputStream()));
+        service.execute(" start  n=node(0)\n return n ", null, new JsonResultWriters().writeTo(new CountingOutputStream()));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        service.execute("start n=node({id}) return n", MapUtil.map("id", 0), new JsonResultWriters().writeTo(new CountingOutputStream()));
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cache.size());
+        service.shutdown();
+    }
+
+    @Test
+    public void testCursorPages() throws IOException {
+        for (int i = 0; i < 4; i++) gdb.createNode();
+        final CypherService service = new CypherService(gdb, 10, new CursorRegistry(1, 60 * 1000));
+        final CursorRegistry.Cursor cursor = service.openCursor("start n=node(*) return n", null, Projection.from(MapUtil.map("node", "ids")));
+        assertEquals(1, service.getCursors().size());
+        final Map page1 = page(service, cursor, 3);
+        assertEquals(3, page1.get("count"));
+        assertEquals(true, page1.get("more"));
+        assertEquals((int) cursor.getId(), page1.get("cursor"));
+        final Map page2 = page(service, cursor, 3);
+        assertEquals(2, page2.get("count"));
+        assertEquals(false, page2.get("more"));
+        assertEquals(0, service.getCursors().size());
+        assertEquals(5L, service.getCursors().stats().get("rowsFetched"));
+        service.shutdown();
+    }
+
+    @Test
+    public void testCursorOfWriteQueryIsAdmittedAsWrite() {
+        final CypherService service = new CypherService(gdb, 10, new CursorRegistry(2, 60 * 1000));
+        assertEquals(false, service.openCursor("start n=node(0) return n", null, Projection.ALL).isWrite());
+        assertEquals(true, service.openCursor("start n=node(0) set n.name = 'foo' return n", null, Projection.ALL).isWrite());
+        service.shutdown();
+    }
+
+    @Test
+    public void testMaxCursorsAndExpiry() throws IOException {
+        final CursorRegistry cursors = new CursorRegistry(1, 1000);
+        final CypherService service = new CypherService(gdb, 10, cursors);
+        service.openCursor("start n=node(0) return n", null, Projection.ALL);
+        try {
+            service.openCursor("start n=node(0) return n", null, Projection.ALL);
+            fail("too many cursors");
+        } catch (TooManyCursorsException expected) {
+        }
+        cursors.sweep(System.currentTimeMillis() + 2000);
+        assertEquals(0, cursors.size());
+        assertEquals(1L, cursors.stats().get("expired"));
+        service.shutdown();
+    }
+
+    @Test
+    public void testConcurrentOpensDontExceedMaxCursors() throws InterruptedException {
+        final CursorRegistry cursors = new CursorRegistry(5, 60000);
+        final Map<String, Object> row = MapUtil.map("n", 1);
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10; i++) {
+                        try {
+                            cursors.open(new ExecutionResultStub(asList("n"), row, 1), Projection.ALL);
+                        } catch (TooManyCursorsException expected) {
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(5, cursors.size());
+        assertEquals(5L, cursors.stats().get("opened"));
+        assertEquals(75L, cursors.stats().get("rejected"));
+        cursors.shutdown();
+    }
+
+    @Test
+    public void testTimeoutAndCancellationAreCounted() throws IOException {
+        for (int i = 0; i < 10; i++) gdb.createNode();
+        final CypherService service = new CypherService(gdb);
+        final OutputStream slowStream = new ByteArrayOutputStream() {
+            public void flush() throws IOException {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        };
+        try {
+            service.execute("start n=node(*) return n", null, new JsonResultWriters().writeTo(slowStream).useFlushPolicy(new FlushPolicy(1, 0, 0)), 20);
+            fail("query should time out");
+        } catch (QueryTimeoutException expected) {
+        }
+        final OutputStream brokenStream = new ByteArrayOutputStream() {
+            public void flush() throws IOException {
+                throw new IOException("client went away");
+            }
+        };
+        try {
+            service.execute("start n=node(*) return n", null, new JsonResultWriters().writeTo(brokenStream).useFlushPolicy(new FlushPolicy(1, 0, 0)), 0);
+            fail("query should be cancelled");
+        } catch (IOException expected) {
+        }
+        service.execute("start n=node(0) return n", null, new JsonResultWriters().writeTo(new CountingOutputStream()), 1000);
+        final Map executions = (Map) service.stats().get("executions");
+        assertEquals(1L, executions.get("timedOut"));
+        assertEquals(1L, executions.get("cancelled"));
+        assertEquals(1L, executions.get("completed"));
+        service.shutdown();
+    }
+
+    @Test
+    public void testAdmissionControlRejectsWhenSaturated() {
+        final AdmissionController admission = new AdmissionController(1, 1, 1, 10);
+        admission.acquire(false);
+        admission.acquire(true);
+        try {
+            admission.acquire(false);
+            fail("reads are saturated");
+        } catch (ServerBusyException expected) {
+        }
+        admission.release(false);
+        admission.acquire(false);
+        assertEquals(1L, admission.stats().get("rejected"));
+        assertEquals(3L, admission.stats().get("admitted"));
+        assertEquals(1, admission.stats().get("maxQueueDepth"));
+        assertEquals(true, AdmissionController.isWrite("start n=node(0) set n.name = 'foo'"));
+        assertEquals(false, AdmissionController.isWrite("start n=node(0) return n.settings"));
+    }
+
+    @Test
+    public void testBatchWithErrors() throws IOException {
+        final CypherService service = new CypherService(gdb);
+        final List<Map<String, Object>> queries = asList(
+                MapUtil.map("query", "start n=node(0) return n"),
+                MapUtil.map("query", "start n=node(0) retrun n"),
+                MapUtil.map("query", "start n=node({id}) return n", "params", MapUtil.map("id", 0), "projection", MapUtil.map("node", "ids")));
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(baos);
+        service.executeBatch(queries, writer, true, 0);
+        writer.close();
+        final List<Map<String, Object>> results = new ObjectMapper().readValue(baos.toString(), List.class);
+        assertEquals(3, results.size());
+        assertEquals(1, results.get(0).get("count"));
+        assertEquals(true, results.get(1).containsKey("error"));
+        assertEquals(true, results.get(1).containsKey("time"));
+        assertEquals(1, results.get(2).get("count"));
+        service.shutdown();
+    }
+
+    @Test
+    public void testBatchReportsTimeoutBetweenQueries() throws IOException {
+        final CypherService service = new CypherService(gdb);
+        final List<Map<String, Object>> queries = asList(
+                MapUtil.map("query", "start n=node(0) return n"),
+                MapUtil.map("query", "start n=node(0) return n"));
+        final ByteArrayOutputStream slowStream = new ByteArrayOutputStream() {
+            public void flush() throws IOException {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        };
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(slowStream).useFlushPolicy(new FlushPolicy(1, 0, 0));
+        service.executeBatch(queries, writer, false, 20);
+        writer.close();
+        final List<Map<String, Object>> results = new ObjectMapper().readValue(slowStream.toString(), List.class);
+        assertEquals(2, results.size());
+        assertEquals(1, results.get(0).get("count")); // all rows written, the deadline passed while flushing the last one
+        assertEquals("QueryTimeoutException", results.get(1).get("exception"));
+        final Map executions = (Map) service.stats().get("executions");
+        assertEquals(1L, executions.get("completed"));
+        assertEquals(1L, executions.get("timedOut"));
+        service.shutdown();
+    }
+
+    @Test
+    public void testParallelBatchKeepsOrder() throws IOException {
+        final CypherService service = new CypherService(gdb, 10, new CursorRegistry(10, 1000), 2, 1);
+        final List<Map<String, Object>> queries = asList(
+                MapUtil.map("query", "start n=node(0,0,0) return n"),
+                MapUtil.map("query", "start n=node(0) retrun n"),
+                MapUtil.map("query", "start n=node(123456789) return n"),
+                MapUtil.map("query", "start n=node(0) return ID(n) as id"));
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(baos);
+        service.executeBatch(queries, writer, false, 0, true);
+        writer.close();
+        final List<Map<String, Object>> results = new ObjectMapper().readValue(baos.toString(), List.class);
+        assertEquals(4, results.size());
+        assertEquals(3, results.get(0).get("count"));
+        assertEquals(true, results.get(1).containsKey("error"));
+        assertEquals(true, results.get(2).containsKey("error"));
+        assertEquals(asList("id"), results.get(3).get("columns"));
+        final Map<String, Object> parallel = (Map<String, Object>) service.stats().get("parallel");
+        assertEquals(4L, parallel.get("executed"));
+        assertEquals(1L, parallel.get("overflowed"));
+        final Map executions = (Map) service.stats().get("executions");
+        assertEquals(2L, executions.get("completed"));
+        assertEquals(2L, executions.get("failed"));
+        service.shutdown();
+    }
+
+    private Map page(CypherService service, CursorRegistry.Cursor cursor, int limit) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(baos);
+        service.fetch(cursor, limit, writer);
+        writer.close();
+        return new ObjectMapper().readValue(baos.toString(), Map.class);
+    }
+
+    @Test
+    public void testNormalizeKeepsStringLiterals() {
+        assertEquals("start n=node(0) where n.name = 'a  b' return n", CypherQueryCache.normalize("  start n=node(0)\n  where n.name = 'a  b'\treturn n"));
     }
 
     private <T> T extract(List<String> columns, List<Map<String, Object>> row, final String column, Class<T> type) {
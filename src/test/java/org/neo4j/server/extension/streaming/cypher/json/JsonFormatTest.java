@@ -1,10 +1,15 @@
 package org.neo4j.server.extension.streaming.cypher.json;
 
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.cypher.javacompat.ExecutionResult;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.helpers.collection.MapUtil;
 import org.neo4j.test.ImpermanentGraphDatabase;
 
@@ -14,6 +19,8 @@ import java.util.Map;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 /**
  * @author mh
@@ -64,6 +71,228 @@ public class JsonFormatTest {
         assertEquals("refNode", ((Map) cell.get("data")).get("name"));
     }
 
+    @Test
+    public void testCompatibleFormatWithEntityCache() throws IOException {
+        ExecutionResult data = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), 2);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeCompatTo(stream, "http://localhost:7470/db/data").useEntityCache(10);
+        writer.writeResult(data, 0L);
+        writer.close();
+        final Map result = new ObjectMapper().readValue(stream.toString(), Map.class);
+        final List<List<Map<String, Object>>> rows = (List<List<Map<String, Object>>>) result.get("data");
+        assertEquals("http://localhost:7470/db/data/node/" + gdb.getReferenceNode().getId(), rows.get(1).get(0).get("self"));
+    }
+
+    @Test
+    public void testNdjsonFormat() throws IOException {
+        ExecutionResult data = new ExecutionResultStub(asList("node", "name"), MapUtil.map("node", gdb.getReferenceNode(), "name", "refNode"), 3);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeNdjsonTo(stream).usePrettyPrinter();
+        writer.writeResult(data, 0L);
+        writer.close();
+        final String[] lines = stream.toString().split("\n");
+        assertEquals(5, lines.length);
+        final ObjectMapper mapper = new ObjectMapper();
+        assertEquals(asList("node", "name"), mapper.readValue(lines[0], Map.class).get("columns"));
+        final List<Map<String, Object>> row = mapper.readValue(lines[1], List.class);
+        assertEquals("refNode", row.get(1).get("String"));
+        assertEquals(3, mapper.readValue(lines[4], Map.class).get("count"));
+    }
+
+    @Test
+    public void testDiscardModeDrainsResult() throws IOException {
+        ExecutionResult data = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), 1000);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeNothingTo(stream);
+        writer.writeResult(data, System.currentTimeMillis());
+        writer.close();
+        final Map result = new ObjectMapper().readValue(stream.toString(), Map.class);
+        assertEquals(asList("node"), result.get("columns"));
+        assertEquals(1000, result.get("count"));
+        assertEquals(false, result.containsKey("rows"));
+        assertEquals(true, result.containsKey("time"));
+    }
+
+    @Test
+    public void testCsvAndTsvFormat() throws IOException {
+        final Node node = gdb.getReferenceNode();
+        final Map<String, Object> row = MapUtil.map("node", node, "text", "a \"b\",\nc\td", "ids", new long[]{1, 2});
+        final ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        final JsonResultWriter csvWriter = new JsonResultWriters().writeCsvTo(csv);
+        csvWriter.writeResult(new ExecutionResultStub(asList("node", "text", "ids"), row, 2), 0L);
+        csvWriter.close();
+        final String csvRow = node.getId() + ",\"a \"\"b\"\",\nc\td\",\"[1,2]\"\r\n";
+        assertEquals("node,text,ids\r\n" + csvRow + csvRow, csv.toString("UTF-8"));
+
+        final ByteArrayOutputStream tsv = new ByteArrayOutputStream();
+        final JsonResultWriter tsvWriter = new JsonResultWriters().writeTsvTo(tsv)
+                .useProjection(new Projection(new String[]{"name", "age"}, null));
+        tsvWriter.writeResult(new ExecutionResultStub(asList("node", "text"), row, 1), 0L);
+        tsvWriter.close();
+        assertEquals("node.name\tnode.age\ttext\nrefNode\t\ta \"b\",\\nc\\td\n", tsv.toString("UTF-8"));
+    }
+
+    @Test
+    public void testWriteDigits() {
+        final byte[] buffer = new byte[25];
+        for (long id : new long[]{0, 7, 10, 12345, Long.MAX_VALUE}) {
+            final int end = JsonResultWriters.writeDigits(id, buffer, 3);
+            assertEquals(String.valueOf(id), new String(buffer, 3, end - 3));
+        }
+    }
+
+    @Test
+    public void testCompactModeFormat() throws IOException {
+        ExecutionResult data = new ExecutionResultStub(asList("node","name"), MapUtil.map("node", gdb.getReferenceNode(),"name","refNode"), 2);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeCompactTo(stream);
+        writer.writeResult(data, 0L);
+        writer.close();
+        final Map result = new ObjectMapper().readValue(stream.toString(), Map.class);
+        assertEquals(2,result.get("count"));
+        List<Object> rows= (List<Object>) result.get("rows");
+        assertEquals("types once, then two rows", 3, rows.size());
+        assertEquals(asList("Node","String"), ((Map) rows.get(0)).get("types"));
+        final List<Object> row = (List<Object>) rows.get(1);
+        assertEquals((int) gdb.getReferenceNode().getId(), ((Map)row.get(0)).get("id"));
+        assertEquals("refNode", row.get(1));
+    }
+
+    @Test
+    public void testBinaryFormat() throws IOException {
+        ExecutionResult data = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), 1);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().binary().writeTo(stream);
+        writer.writeResult(data, 0L);
+        writer.close();
+        final Map result = new ObjectMapper(new SmileFactory()).readValue(stream.toByteArray(), Map.class);
+        assertEquals(1,result.get("count"));
+        List<List<Map<String,Object>>> rows= (List<List<Map<String, Object>>>) result.get("rows");
+        final Map node = (Map) rows.get(0).get(0).get("Node");
+        assertEquals("refNode", ((Map)node.get("data")).get("name"));
+    }
+
+    @Test
+    public void testEntityReferences() throws IOException {
+        ExecutionResult data = new ExecutionResultStub(asList("n","m"), MapUtil.map("n", gdb.getReferenceNode(), "m", gdb.getReferenceNode()), 2);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(stream).useEntityReferences();
+        writer.writeResult(data, 0L);
+        writer.close();
+        final Map result = new ObjectMapper().readValue(stream.toString(), Map.class);
+        assertEquals(true, result.get("dedup"));
+        List<List<Map<String,Object>>> rows= (List<List<Map<String, Object>>>) result.get("rows");
+        final Map first = (Map) rows.get(0).get(0).get("Node");
+        assertEquals("refNode", ((Map) first.get("data")).get("name"));
+        final Map reference = MapUtil.map("node", (int) gdb.getReferenceNode().getId());
+        assertEquals(reference, rows.get(0).get(1).get("Node"));
+        assertEquals(reference, rows.get(1).get(0).get("Node"));
+    }
+
+    @Test
+    public void testEntityCacheOutputIsIdentical() throws IOException {
+        final Node refNode = gdb.getReferenceNode();
+        final Relationship rel = refNode.createRelationshipTo(gdb.createNode(), DynamicRelationshipType.withName("KNOWS"));
+        rel.setProperty("since", 2012);
+        final Map<String, Object> row = MapUtil.map("n", refNode, "r", rel, "path", asList(refNode, rel.getEndNode()));
+        final JsonResultWriters writers = new JsonResultWriters();
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        JsonResultWriter writer = writers.writeTo(expected);
+        writer.writeResult(new ExecutionResultStub(asList("n", "r", "path"), row, 3), 0L);
+        writer.close();
+
+        final ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        writer = writers.writeTo(cached).useEntityCache(10);
+        writer.writeResult(new ExecutionResultStub(asList("n", "r", "path"), row, 3), 0L);
+        writer.close();
+        assertEquals(expected.toString("UTF-8").replaceAll("\"time\":\\d+", ""), cached.toString("UTF-8").replaceAll("\"time\":\\d+", ""));
+    }
+
+    @Test
+    public void testProjection() throws IOException {
+        gdb.getReferenceNode().setProperty("age", 42);
+        ExecutionResult data = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), 1);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(stream).useProjection(new Projection(new String[]{"age", "missing"}, null));
+        writer.writeResult(data, 0L);
+        writer.close();
+        final Map result = new ObjectMapper().readValue(stream.toString(), Map.class);
+        List<List<Map<String,Object>>> rows= (List<List<Map<String, Object>>>) result.get("rows");
+        final Map node = (Map) rows.get(0).get(0).get("Node");
+        assertEquals(MapUtil.map("age", 42), node.get("data"));
+    }
+
+    @Test
+    public void testCustomValueSerializer() throws IOException {
+        final JsonResultWriters writers = new JsonResultWriters();
+        writers.getValueSerializers().register(StringBuilder.class, new ValueSerializer("Text") {
+            public void write(JsonGenerator g, Object value) throws IOException {
+                g.writeString(value.toString());
+            }
+        });
+        ExecutionResult data = new ExecutionResultStub(asList("text","numbers"), MapUtil.map("text", new StringBuilder("foo"),"numbers",new long[]{1,2}), 1);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = writers.writeTo(stream);
+        writer.writeResult(data, 0L);
+        writer.close();
+        final Map result = new ObjectMapper().readValue(stream.toString(), Map.class);
+        List<List<Map<String,Object>>> rows= (List<List<Map<String, Object>>>) result.get("rows");
+        assertEquals("foo", rows.get(0).get(0).get("Text"));
+        assertEquals(asList(1, 2), rows.get(0).get(1).get("long[]"));
+    }
+
+    @Test
+    public void testFlushPolicy() throws IOException {
+        ExecutionResult data = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), 10);
+        final int[] flushes = new int[1];
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream() {
+            public void flush() throws IOException {
+                flushes[0]++;
+            }
+        };
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(stream).useFlushPolicy(new FlushPolicy(2, 0, 0));
+        writer.writeResult(data, 0L);
+        assertEquals(5, flushes[0]);
+    }
+
+    @Test
+    public void testFirstRowFlushPolicyAndStatistics() throws IOException {
+        ExecutionResult data = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), 10);
+        final FlushPolicy policy = FlushPolicy.parse("application/json;flush_first=true;flush_rows=5");
+        final JsonResultWriters writers = new JsonResultWriters();
+        final JsonResultWriter writer = writers.writeTo(new ByteArrayOutputStream()).useFlushPolicy(policy);
+        writer.writeResult(data, 0L);
+        writer.close();
+        assertEquals(3L, writers.getFlushStatistics().getFlushes());
+        assertEquals(10L, writers.getFlushStatistics().stats().get("rows"));
+        assertNull(FlushPolicy.parse("application/json;mode=compact"));
+    }
+
+    @Test
+    public void testInvalidFlushParametersAreIgnored() {
+        assertEquals(new FlushPolicy(0, 10, 0).toString(), FlushPolicy.parse("application/json;flush_rows=abc;flush_bytes=10").toString());
+        assertEquals(new FlushPolicy(0, 0, 0).toString(), FlushPolicy.parse("application/json;flush_rows=99999999999;flush_millis=-5").toString());
+        assertEquals(new FlushPolicy(true, 5, 0, 0).toString(), FlushPolicy.parse("application/json;flush_first=true;flush_rows=5").toString());
+    }
+
+    @Test
+    public void testBrokenOutputIsNoticedWithoutFlushPolicy() throws IOException {
+        ExecutionResult data = new ExecutionResultStub(asList("name"), MapUtil.map("name", "Peter"), 100000);
+        final OutputStream brokenStream = new ByteArrayOutputStream() {
+            public void flush() throws IOException {
+                throw new IOException("client went away");
+            }
+        };
+        final JsonResultWriters writers = new JsonResultWriters();
+        writers.setProbeMillis(1);
+        try {
+            writers.writeTo(brokenStream).writeResult(data, 0L);
+            fail("the probe flush should notice the broken output");
+        } catch (IOException expected) {
+        }
+    }
+
     private Map query(String uri) throws IOException {
         ExecutionResult data = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), 1);
         final ByteArrayOutputStream stream = new ByteArrayOutputStream();
@@ -1,5 +1,9 @@
 package org.neo4j.server.extension.streaming.cypher.json;
 
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -8,13 +12,29 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.helpers.collection.MapUtil;
 import org.neo4j.server.extension.streaming.cypher.CypherResultReader;
+import org.neo4j.server.extension.streaming.cypher.PipelinedResultReader;
+import org.neo4j.server.extension.streaming.cypher.ResultFormatReader;
+import org.neo4j.server.extension.streaming.cypher.TypedResultReader;
 import org.neo4j.test.ImpermanentGraphDatabase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 /**
  * @author mh
@@ -65,6 +85,462 @@ public class StreamingJsonTest {
         thread.join();
     }
 
+    @Test
+    public void testReadCompactResults() throws IOException {
+        ExecutionResult result = new ExecutionResultStub(asList("node","age"), MapUtil.map("node", gdb.getReferenceNode(), "age", 39), 10);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeCompactTo(stream);
+        writer.writeResult(result, System.currentTimeMillis());
+        writer.close();
+        final int[] cells = new int[2];
+        new CypherResultReader().readCypherResults(new ByteArrayInputStream(stream.toByteArray()), new CypherResultReader.ResultCallback() {
+            public void cell(int column, String type, Object value) {
+                if (column == 0 && type.equals("Node") && ((Map) value).get("id").equals(0)) cells[0]++;
+                if (column == 1 && type.equals("Integer") && value.equals(39)) cells[1]++;
+            }
+        });
+        assertEquals(10, cells[0]);
+        assertEquals(10, cells[1]);
+    }
+
+    @Test
+    public void testIterateRows() throws IOException {
+        ExecutionResult result = new ExecutionResultStub(asList("node", "age"), MapUtil.map("node", gdb.getReferenceNode(), "age", 39), 10);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(stream);
+        writer.writeResult(result, System.currentTimeMillis());
+        writer.close();
+        final CypherResultReader reader = new CypherResultReader();
+        final CypherResultReader.ResultIterator rows = reader.iterate(new ByteArrayInputStream(stream.toByteArray()));
+        assertEquals(asList("node", "age"), rows.getColumns());
+        int count = 0;
+        while (rows.hasNext()) {
+            final List<Object> row = rows.next();
+            assertEquals(39, row.get(1));
+            assertEquals("Integer", rows.getType(1));
+            count++;
+        }
+        assertEquals(10, count);
+        assertEquals(Integer.valueOf(10), rows.getCount());
+
+        final CypherResultReader.ResultIterator skipped = reader.iterate(new ByteArrayInputStream(stream.toByteArray()));
+        assertEquals(true, skipped.hasNext());
+        skipped.next();
+        skipped.close();
+        assertEquals(false, skipped.hasNext());
+        assertEquals(null, skipped.getCount());
+    }
+
+    @Test
+    public void testReadAllFormatsWithDetection() throws IOException {
+        final List<String> columns = asList("name", "age");
+        final Map<String, Object> row = MapUtil.map("name", "Peter, \"Pete\"", "age", 39);
+        final JsonResultWriters writers = new JsonResultWriters();
+        final ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[6];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = new ByteArrayOutputStream();
+        }
+        final JsonResultWriter[] formats = {writers.writeTo(outputs[0]), writers.writeCompatTo(outputs[1], "http://localhost:7474/db/data/"),
+                writers.writeNdjsonTo(outputs[2]), writers.writeCsvTo(outputs[3]), writers.writeTsvTo(outputs[4]), new JsonResultWriters().binary().writeTo(outputs[5])};
+        for (JsonResultWriter writer : formats) {
+            writer.writeResult(new ExecutionResultStub(columns, row, 10), System.currentTimeMillis());
+            writer.close();
+        }
+        final ResultFormatReader reader = new ResultFormatReader();
+        for (int i = 0; i < outputs.length; i++) {
+            final CypherResultReader.ResultIterator rows = reader.iterate(new ByteArrayInputStream(outputs[i].toByteArray()), null);
+            assertEquals(columns, rows.getColumns());
+            int count = 0;
+            while (rows.hasNext()) {
+                final List<Object> cells = rows.next();
+                assertEquals("Peter, \"Pete\"", cells.get(0));
+                assertEquals("39", String.valueOf(cells.get(1)));
+                count++;
+            }
+            assertEquals(10, count);
+            assertEquals(i == 1 ? null : Integer.valueOf(10), rows.getCount()); // the compat format has no count
+        }
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(outputs[3].toByteArray());
+        gzip.close();
+        final int[] ages = new int[1];
+        reader.selectColumns("age").readCypherResults(new ByteArrayInputStream(compressed.toByteArray()), null, new CypherResultReader.ResultCallback() {
+            public void cell(int column, String type, Object value) {
+                if (column == 1 && "39".equals(value)) ages[0]++;
+                else throw new AssertionError("unexpected cell " + column + " " + value);
+            }
+        });
+        assertEquals(10, ages[0]);
+    }
+
+    @Test
+    public void testDetectionOfTextThatLooksLikeZlib() throws IOException {
+        final CypherResultReader.ResultIterator rows = new ResultFormatReader().iterate(new ByteArrayInputStream("x^ + 1,y\r\n2,3\r\n".getBytes("UTF-8")), null);
+        assertEquals(asList("x^ + 1", "y"), rows.getColumns());
+        assertEquals(asList((Object) "2", "3"), rows.next());
+        assertEquals(false, rows.hasNext());
+    }
+
+    @Test
+    public void testTypesBelongToTheReturnedRow() throws IOException {
+        final String json = "{\"columns\":[\"v\"],\"rows\":[[{\"Integer\":1}],[{\"String\":\"a\"}]]}";
+        final CypherResultReader.ResultIterator rows = new CypherResultReader().iterate(new ByteArrayInputStream(json.getBytes("UTF-8")));
+        rows.next();
+        assertEquals(true, rows.hasNext()); // reads ahead
+        assertEquals("Integer", rows.getType(0));
+        rows.next();
+        assertEquals("String", rows.getType(0));
+    }
+
+    @Test
+    public void testDelimitedEmptyStringsAndErrors() throws IOException {
+        final List<String> columns = asList("empty", "none", "tag");
+        final Map<String, Object> row = MapUtil.map("empty", "", "none", null, "tag", "#x");
+        final JsonResultWriters writers = new JsonResultWriters();
+        for (boolean csv : new boolean[]{true, false}) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final JsonResultWriter writer = csv ? writers.writeCsvTo(output) : writers.writeTsvTo(output);
+            writer.writeResult(new ExecutionResultStub(columns, row, 1), System.currentTimeMillis());
+            writer.writeError(new IllegalArgumentException("unknown identifier"), System.currentTimeMillis());
+            writer.close();
+            final CypherResultReader.ResultIterator rows = new ResultFormatReader().iterate(new ByteArrayInputStream(output.toByteArray()), csv ? "text/csv" : "text/tab-separated-values");
+            final List<Object> cells = rows.next();
+            assertEquals(csv ? "" : null, cells.get(0)); // tsv has no quoting to tell empty from null
+            assertEquals(null, cells.get(1));
+            assertEquals("#x", cells.get(2));
+            try {
+                rows.hasNext();
+                fail("the error line is not a row");
+            } catch (RuntimeException expected) {
+                assertEquals("Error entry in result: IllegalArgumentException: unknown identifier", expected.getCause().getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testReadArrayFramedResults() throws IOException {
+        final List<String> columns = asList("name", "age");
+        final Map<String, Object> row = MapUtil.map("name", "Peter", "age", 39);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(stream);
+        writer.startArray(); // batch endpoint
+        writer.writeResult(new ExecutionResultStub(columns, row, 10), System.currentTimeMillis());
+        writer.writeError(new IllegalArgumentException("unknown identifier"), System.currentTimeMillis());
+        writer.startArray(); // frame per item of websocket commands
+        writer.writeResult(new ExecutionResultStub(columns, row, 5), System.currentTimeMillis());
+        writer.endArray();
+        writer.endArray();
+        writer.close();
+        final List<Integer> counts = new ArrayList<Integer>();
+        final int[] rows = new int[1];
+        final List<String> errors = new ArrayList<String>();
+        new ResultFormatReader().readCypherResults(new ByteArrayInputStream(stream.toByteArray()), null, new CypherResultReader.ResultCallback() {
+            public void columns(List<String> value) {
+                assertEquals(columns, value);
+            }
+
+            public void row(int row) {
+                rows[0]++;
+            }
+
+            public void cell(int column, String type, Object value) {
+                if (column == 1) assertEquals(39, value);
+            }
+
+            public void count(int count) {
+                counts.add(count);
+            }
+
+            public void error(String message, String exception) {
+                errors.add(exception + ": " + message);
+            }
+        });
+        assertEquals(15, rows[0]);
+        assertEquals(asList(10, 5), counts);
+        assertEquals(asList("IllegalArgumentException: unknown identifier"), errors);
+        try {
+            new CypherResultReader().iterate(new ByteArrayInputStream(stream.toByteArray()));
+            fail("the iterator reads single results only");
+        } catch (JsonParseException expected) {
+            // array framed results need the callback api
+        }
+    }
+
+    @Test
+    public void testPipelinedReaderWithHeavyRowProcessing() throws IOException {
+        final int rows = 100000;
+        ExecutionResult result = new ExecutionResultStub(asList("node", "age"), MapUtil.map("node", gdb.getReferenceNode(), "age", 39), rows);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(stream);
+        writer.writeResult(result, System.currentTimeMillis());
+        writer.close();
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (PipelinedResultReader reader : asList(PipelinedResultReader.ordered(new CypherResultReader()),
+                PipelinedResultReader.unordered(new CypherResultReader(), cores))) {
+            final AtomicInteger processed = new AtomicInteger();
+            final AtomicLong checksum = new AtomicLong();
+            final int[] count = new int[1];
+            final long start = System.currentTimeMillis();
+            reader.readCypherResults(new ByteArrayInputStream(stream.toByteArray()), new PipelinedResultReader.RowHandler() {
+                public void row(List<Object> row) {
+                    long hash = row.get(1).hashCode();
+                    for (int i = 0; i < 2000; i++) hash = hash * 31 + i;
+                    checksum.addAndGet(hash);
+                    processed.incrementAndGet();
+                }
+
+                public void count(int value) {
+                    count[0] = value;
+                }
+            });
+            System.out.println("Pipelined reading of " + rows + " rows with heavy processing took " + (System.currentTimeMillis() - start) + " ms, checksum " + checksum.get());
+            assertEquals(rows, processed.get());
+            assertEquals(rows, count[0]);
+            reader.shutdown();
+        }
+    }
+
+    @Test
+    public void testPipelinedOrderedReaderWithSeveralConsumers() throws IOException {
+        final int rows = 10000;
+        final StringBuilder json = new StringBuilder("{\"columns\":[\"n\"],\"rows\":[");
+        for (int i = 0; i < rows; i++) {
+            json.append(i == 0 ? "" : ",").append("[{\"Integer\":").append(i).append("}]");
+        }
+        json.append("],\"count\":").append(rows).append("}");
+        final PipelinedResultReader reader = PipelinedResultReader.ordered(new CypherResultReader(), 4);
+        final List<Long> accepted = new ArrayList<Long>(rows);
+        reader.readCypherResults(new ByteArrayInputStream(json.toString().getBytes("UTF-8")), new PipelinedResultReader.OrderedRowHandler<Long>() {
+            public Long process(List<Object> row) {
+                return ((Number) row.get(0)).longValue();
+            }
+
+            public void accept(Long value) {
+                accepted.add(value);
+            }
+        });
+        reader.shutdown();
+        assertEquals(rows, accepted.size());
+        for (int i = 0; i < rows; i++) {
+            assertEquals(Long.valueOf(i), accepted.get(i));
+        }
+    }
+
+    @Test
+    public void testPipelinedReaderReportsErrorsOfTheHandler() throws IOException {
+        ExecutionResult result = new ExecutionResultStub(asList("node", "age"), MapUtil.map("node", gdb.getReferenceNode(), "age", 39), 100000);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(stream);
+        writer.writeResult(result, System.currentTimeMillis());
+        writer.close();
+        for (PipelinedResultReader reader : asList(PipelinedResultReader.ordered(new CypherResultReader(), 2),
+                PipelinedResultReader.unordered(new CypherResultReader(), 2))) {
+            try {
+                reader.readCypherResults(new ByteArrayInputStream(stream.toByteArray()), new PipelinedResultReader.RowHandler() {
+                    public void row(List<Object> row) {
+                        throw new AssertionError("failing handler");
+                    }
+                });
+                fail("the error of the handler should be reported");
+            } catch (IOException expected) {
+                assertEquals(AssertionError.class, expected.getCause().getClass());
+            } finally {
+                reader.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testReadSelectedColumnsOfWideResult() throws IOException {
+        final int rows = 20000;
+        final long[] ids = new long[500];
+        final List<Node> nodes = Collections.nCopies(20, gdb.getReferenceNode());
+        ExecutionResult result = new ExecutionResultStub(asList("name", "ids", "nodes"), MapUtil.map("name", "Peter", "ids", ids, "nodes", nodes), rows);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(stream);
+        writer.writeResult(result, System.currentTimeMillis());
+        writer.close();
+        final byte[] bytes = stream.toByteArray();
+        final int[] names = new int[2];
+        final int[] others = new int[2];
+        final long[] times = new long[2];
+        int run = 0;
+        for (CypherResultReader reader : asList(new CypherResultReader(), new CypherResultReader().selectColumns("name"))) {
+            final int current = run;
+            final long start = System.currentTimeMillis();
+            reader.readCypherResults(new ByteArrayInputStream(bytes), new CypherResultReader.ResultCallback() {
+                public void cell(int column, String type, Object value) {
+                    if (column == 0 && "Peter".equals(value)) names[current]++;
+                    else others[current]++;
+                }
+            });
+            times[run++] = System.currentTimeMillis() - start;
+        }
+        assertEquals(rows, names[0]);
+        assertEquals(rows, names[1]);
+        assertEquals(2 * rows, others[0]);
+        assertEquals(0, others[1]);
+        System.out.println("Reading " + rows + " wide rows took " + times[0] + " ms for all columns, " + times[1] + " ms for one column.");
+    }
+
+    @Test
+    public void testReadEntityReferences() throws IOException {
+        ExecutionResult result = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), 10);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(stream).useEntityReferences();
+        writer.writeResult(result, System.currentTimeMillis());
+        writer.close();
+        final int[] resolved = new int[1];
+        new CypherResultReader().readCypherResults(new ByteArrayInputStream(stream.toByteArray()), new CypherResultReader.ResultCallback() {
+            public void cell(int column, String type, Object value) {
+                if ("Peter".equals(((Map) ((Map) value).get("data")).get("name"))) resolved[0]++;
+            }
+        });
+        assertEquals(10, resolved[0]);
+    }
+
+    @Test
+    public void testTypedReaderDecodesCells() throws IOException {
+        ExecutionResult result = new ExecutionResultStub(asList("node", "age"), MapUtil.map("node", gdb.getReferenceNode(), "age", 39), 10);
+        for (boolean compact : new boolean[]{false, true}) {
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            final JsonResultWriter writer = compact ? new JsonResultWriters().writeCompactTo(stream) : new JsonResultWriters().writeTo(stream);
+            writer.writeResult(result, System.currentTimeMillis());
+            writer.close();
+            final int[] cells = new int[3];
+            new TypedResultReader().readCypherResults(new ByteArrayInputStream(stream.toByteArray()), new TypedResultReader.TypedCallback() {
+                public void node(int column, TypedResultReader.NodeData node) {
+                    if (column == 0 && node.getId() == 0 && "Peter".equals(node.getProperty("name"))) cells[0]++;
+                }
+
+                public void cell(int column, long value) {
+                    if (column == 1 && value == 39) cells[1]++;
+                }
+
+                public void count(int count) {
+                    cells[2] = count;
+                }
+            });
+            assertEquals(10, cells[0]);
+            assertEquals(10, cells[1]);
+            assertEquals(10, cells[2]);
+        }
+    }
+
+    @Test
+    public void testReadOneMillionNodesWithTypedReader() throws IOException {
+        if (allocatedBytes() < 0) return;
+        ExecutionResult result = new ExecutionResultStub(asList("node", "age"), MapUtil.map("node", gdb.getReferenceNode(), "age", 39), MILLION);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final JsonResultWriter writer = new JsonResultWriters().writeTo(stream);
+        writer.writeResult(result, System.currentTimeMillis());
+        writer.close();
+        final byte[] bytes = stream.toByteArray();
+
+        long allocated = allocatedBytes();
+        long start = System.currentTimeMillis();
+        new CypherResultReader().readCypherResults(new ByteArrayInputStream(bytes), new CypherResultReader.ResultCallback());
+        final long mapTime = System.currentTimeMillis() - start;
+        final long mapBytesPerRow = (allocatedBytes() - allocated) / MILLION;
+
+        allocated = allocatedBytes();
+        start = System.currentTimeMillis();
+        new TypedResultReader().readCypherResults(new ByteArrayInputStream(bytes), new TypedResultReader.TypedCallback());
+        final long typedTime = System.currentTimeMillis() - start;
+        final long typedBytesPerRow = (allocatedBytes() - allocated) / MILLION;
+        System.out.println("Reading " + bytes.length + " bytes took " + mapTime + " ms allocating " + mapBytesPerRow + " bytes per row with maps, "
+                + typedTime + " ms allocating " + typedBytesPerRow + " bytes per row with the typed reader.");
+    }
+
+    @Test
+    public void testStreamOneMillionNodesCompact() throws IOException {
+        ExecutionResult result = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), MILLION);
+        final CountingOutputStream stream = new CountingOutputStream();
+        long start = System.currentTimeMillis();
+        new JsonResultWriters().writeTo(stream).writeResult(result, start);
+        final long time = System.currentTimeMillis() - start;
+        final int bytes = stream.getCount();
+
+        final CountingOutputStream compactStream = new CountingOutputStream();
+        start = System.currentTimeMillis();
+        new JsonResultWriters().writeCompactTo(compactStream).writeResult(result, start);
+        final long compactTime = System.currentTimeMillis() - start;
+        System.out.println("Streaming compact " + compactStream.getCount() + " bytes took " + compactTime + " ms, saved "
+                + (bytes - compactStream.getCount()) + " bytes and " + (time - compactTime) + " ms.");
+    }
+
+    @Test
+    public void testReadBinaryOneMillionNodes() throws IOException {
+        ExecutionResult result = new ExecutionResultStub(asList("node", "age"), MapUtil.map("node", gdb.getReferenceNode(), "age", 39), MILLION);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
+        final JsonResultWriter writer = new JsonResultWriters().binary().writeTo(stream);
+        writer.writeResult(result, start);
+        writer.close();
+        System.out.println("Streaming binary " + stream.size() + " bytes took " + (System.currentTimeMillis() - start) + " ms.");
+        start = System.currentTimeMillis();
+        CypherResultReader.binary().readCypherResults(new ByteArrayInputStream(stream.toByteArray()), new CypherResultReader.ResultCallback());
+        System.out.println("Reading binary results took " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    @Test
+    public void testStreamOneMillionNodesWithEntityCache() throws IOException {
+        ExecutionResult result = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), MILLION);
+        final CountingOutputStream stream = new CountingOutputStream();
+        final long start = System.currentTimeMillis();
+        new JsonResultWriters().writeTo(stream).useEntityCache(JsonResultWriters.DEFAULT_ENTITY_CACHE_SIZE).writeResult(result, System.currentTimeMillis());
+        final long end = System.currentTimeMillis();
+        System.out.println("Streaming with entity cache " + stream.getCount() + " bytes took " + (end - start) + " ms.");
+    }
+
+    @Test
+    public void testValueDispatchOfPropertyTypes() throws IOException {
+        final Map<String, Object> row = MapUtil.map("ints", new int[]{1, 2, 3}, "longs", new long[]{1L, 2L, 3L},
+                "names", new String[]{"Peter", "Paul"}, "age", 39, "score", 0.5D);
+        final List<String> columns = asList("ints", "longs", "names", "age", "score");
+
+        final CountingOutputStream objectMapperStream = new CountingOutputStream();
+        long start = System.currentTimeMillis();
+        final JsonGenerator g = new JsonFactory(new ObjectMapper()).createJsonGenerator(objectMapperStream);
+        g.writeStartArray();
+        for (int i = 0; i < MILLION; i++) {
+            g.writeStartArray();
+            for (String column : columns) {
+                final Object value = row.get(column);
+                g.writeStartObject();
+                g.writeFieldName(value.getClass().getSimpleName());
+                g.writeObject(value);
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+        }
+        g.writeEndArray();
+        g.close();
+        final long objectMapperTime = System.currentTimeMillis() - start;
+
+        final CountingOutputStream stream = new CountingOutputStream();
+        start = System.currentTimeMillis();
+        new JsonResultWriters().writeTo(stream).writeResult(new ExecutionResultStub(columns, row, MILLION), start);
+        final long serializerTime = System.currentTimeMillis() - start;
+        System.out.println("Writing " + MILLION + " rows of property values with the ObjectMapper took " + objectMapperTime
+                + " ms, with the serializer registry " + serializerTime + " ms.");
+    }
+
+    @Test
+    public void testAllocationsOfCompatFormat() throws IOException {
+        final long allocated = allocatedBytes();
+        if (allocated < 0) return;
+        ExecutionResult result = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), MILLION);
+        final CountingOutputStream stream = new CountingOutputStream();
+        final long start = System.currentTimeMillis();
+        new JsonResultWriters().writeCompatTo(stream, "http://localhost:7474/db/data/").writeResult(result, start);
+        final long time = System.currentTimeMillis() - start;
+        final long bytesPerRow = (allocatedBytes() - allocated) / MILLION;
+        System.out.println("Streaming " + stream.getCount() + " bytes in compat format took " + time + " ms, allocated " + bytesPerRow + " bytes per row.");
+    }
+
     @Test
     public void testStreamOneMillionNodes() throws IOException {
         ExecutionResult result = new ExecutionResultStub(asList("node"), MapUtil.map("node", gdb.getReferenceNode()), MILLION);
@@ -75,4 +551,18 @@ public class StreamingJsonTest {
         System.out.println("Streaming " + stream.getCount() + " bytes took " + (end - start) + " ms.");
     }
 
+    /**
+     * bytes allocated by the current thread, com.sun.management.ThreadMXBean is looked up reflectively as only
+     * HotSpot based JVMs provide it
+     *
+     * @return the bytes or -1 if the JVM doesn't measure them
+     */
+    private static long allocatedBytes() {
+        try {
+            final Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
 }